@@ -0,0 +1,147 @@
+import java.lang.invoke.MethodHandle;
+import java.util.*;
+import java.util.function.Function;
+
+// Caché de programas compilados compartida por todo el proceso, indexada por el contenido del programa
+// Un harness que vuelve a ejecutar la misma solución tras cada reset() (o en otro LightBot) no vuelve a parsear
+// ni a compilar: reutiliza los bloques enlazados y, si ya se generó, el bytecode
+// Se acota por número de entradas y por peso (enteros de código de todos los bloques) y expulsa la menos usada
+final class CacheProgramas {
+    private static int maxEntradas = 256;
+    private static long maxPeso = 1 << 20;
+    private static long peso;
+    private static long aciertos;
+    private static long fallos;
+    private static long expulsiones;
+    private static final LinkedHashMap<Fuente, Compilado> entradas = new LinkedHashMap<>(16, 0.75f, true);
+
+    private CacheProgramas() {
+    }
+
+    // Un programa compilado y enlazado, listo para ejecutarse en cualquier LightBot
+    static final class Compilado {
+        final Program[] bloques;   // Tabla de Program.enlazar
+        final int eliminadas;      // Instrucciones que quitó el optimizador
+        final long peso;
+        private boolean intentado; // Ya se intentó generar su bytecode
+        private volatile MethodHandle generado;
+
+        Compilado(Program[] bloques, int eliminadas) {
+            this.bloques = bloques;
+            this.eliminadas = eliminadas;
+            long p = 0;
+            for (Program b : bloques) p += b.code.length;
+            this.peso = p;
+        }
+
+        // Bytecode ya generado para este programa, o null
+        MethodHandle generado() {
+            return generado;
+        }
+
+        // Genera el bytecode la primera vez que se pide; devuelve null si el programa no es apto
+        synchronized MethodHandle generar() {
+            if (!intentado) {
+                intentado = true;
+                generado = GeneradorBytecode.generar(bloques);
+            }
+            return generado;
+        }
+    }
+
+    // Clave: las líneas del programa con su hash precalculado
+    // Las búsquedas envuelven el array del llamante sin copiarlo; solo se copia al guardar una entrada nueva
+    private static final class Fuente {
+        final String[] lineas;
+        final int hash;
+
+        Fuente(String[] lineas) {
+            this.lineas = lineas;
+            this.hash = Arrays.hashCode(lineas);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Fuente && ((Fuente) o).hash == hash && Arrays.equals(((Fuente) o).lineas, lineas);
+        }
+    }
+
+    // Devuelve el programa compilado de instrucciones, compilándolo con compilador si no está en la caché
+    // La compilación se hace fuera del cerrojo; si falla, la excepción llega al llamante y no se guarda nada
+    static Compilado obtener(String[] instrucciones, Function<List<String>, Compilado> compilador) {
+        Fuente clave = new Fuente(instrucciones);
+        synchronized (CacheProgramas.class) {
+            Compilado c = entradas.get(clave);
+            if (c != null) {
+                aciertos++;
+                return c;
+            }
+            fallos++;
+        }
+        String[] copia = instrucciones.clone();
+        Compilado c = compilador.apply(Arrays.asList(copia));
+        synchronized (CacheProgramas.class) {
+            Compilado otro = entradas.get(clave);
+            if (otro != null) return otro;
+            if (maxEntradas > 0 && c.peso <= maxPeso) {
+                entradas.put(new Fuente(copia), c);
+                peso += c.peso;
+                recortar();
+            }
+        }
+        return c;
+    }
+
+    // Cambia los límites de la caché, expulsando lo que sobre; 0 entradas desactiva la caché
+    static synchronized void limitar(int nuevasEntradas, long nuevoPeso) {
+        if (nuevasEntradas < 0) throw new IllegalArgumentException("Invalid cache size: " + nuevasEntradas);
+        if (nuevoPeso < 0) throw new IllegalArgumentException("Invalid cache weight: " + nuevoPeso);
+        maxEntradas = nuevasEntradas;
+        maxPeso = nuevoPeso;
+        recortar();
+    }
+
+    // Expulsa las entradas menos usadas hasta volver a estar dentro de los límites
+    private static void recortar() {
+        Iterator<Compilado> it = entradas.values().iterator();
+        while ((entradas.size() > maxEntradas || peso > maxPeso) && it.hasNext()) {
+            peso -= it.next().peso;
+            it.remove();
+            expulsiones++;
+        }
+    }
+
+    static synchronized int maxEntradas() {
+        return maxEntradas;
+    }
+
+    static synchronized long maxPeso() {
+        return maxPeso;
+    }
+
+    // Indica si el programa está en la caché sin contarlo como acierto ni fallo ni cambiar su antigüedad
+    static synchronized boolean contiene(String[] instrucciones) {
+        return entradas.containsKey(new Fuente(instrucciones));
+    }
+
+    static synchronized long aciertos() {
+        return aciertos;
+    }
+
+    static synchronized long fallos() {
+        return fallos;
+    }
+
+    static synchronized long expulsiones() {
+        return expulsiones;
+    }
+
+    static synchronized int numEntradas() {
+        return entradas.size();
+    }
+}
@@ -0,0 +1,218 @@
+import java.util.*;
+
+// Inserta en línea las funciones pequeñas en sus puntos de llamada y especializa las funciones con parámetros
+// para cada combinación distinta de argumentos constantes: CALL LINE(4) pasa a llamar a (o a contener) una copia
+// de LINE donde REPEAT N es REPEAT 4, con número de vueltas conocido
+// Las especializaciones se guardan en una tabla acotada por programa, con claves como "LINE(4)", que no pueden
+// chocar con nombres de funciones reales porque estos nunca contienen paréntesis
+final class Especializador {
+    private static final int MAX_EN_LINEA = 48;           // Tamaño máximo (en enteros de código) de un cuerpo a insertar
+    private static final int MAX_BLOQUE = 4096;           // Un bloque deja de crecer por inserciones a partir de aquí
+    private static final int MAX_ESPECIALIZACIONES = 256;
+    private static final int RONDAS = 4;                  // Pasadas de inserción por bloque (cada una baja un nivel de llamadas)
+
+    private final Map<String, Program> funciones;
+    private final Map<String, Program> especializaciones = new HashMap<>();
+    private final ArrayDeque<String> pendientes = new ArrayDeque<>();
+
+    private Especializador(Map<String, Program> funciones) {
+        this.funciones = funciones;
+    }
+
+    // Procesa el bloque principal y todas las funciones; las especializaciones se añaden a funciones
+    // y el bloque principal procesado se devuelve
+    static Program especializar(Program main, Map<String, Program> funciones) {
+        Especializador e = new Especializador(funciones);
+        for (String nombre : new ArrayList<>(funciones.keySet())) {
+            funciones.put(nombre, e.procesar(funciones.get(nombre)));
+        }
+        main = e.procesar(main);
+        while (!e.pendientes.isEmpty()) {
+            String nombre = e.pendientes.poll();
+            funciones.put(nombre, e.procesar(funciones.get(nombre)));
+        }
+        return main;
+    }
+
+    private Program procesar(Program p) {
+        for (int ronda = 0; ronda < RONDAS; ronda++) {
+            Program q = expandir(p);
+            if (q == null) break;
+            p = Optimizador.optimizar(q);
+        }
+        return p;
+    }
+
+    // Una pasada sobre los CALL de un bloque; devuelve null si no ha cambiado nada
+    private Program expandir(Program p) {
+        Bloque b = new Bloque();
+        boolean cambios = false;
+        int[] code = p.code;
+        for (int pc = 0; pc < code.length; pc += Program.longitud(code[pc])) {
+            if (code[pc] != Program.OP_CALL) {
+                b.copiar(p, pc, null, null);
+                continue;
+            }
+            Program.Llamada ll = p.llamadas[code[pc + 1]];
+            Program f = funciones.get(ll.nombre);
+            if (f == null || ll.slots.length < f.numParams) {
+                b.llamar(ll);
+                continue;
+            }
+            Program objetivo = f;
+            String clave = null;
+            if (f.numParams > 0 && literales(ll, f.numParams)) {
+                clave = clave(ll, f.numParams);
+                Program s = especializacion(clave, f, ll.valores);
+                if (s != null) objetivo = s;
+                else clave = null;
+            }
+            if (objetivo != p && insertable(objetivo) && b.n + objetivo.code.length <= MAX_BLOQUE) {
+                if (objetivo == f) b.insertar(f, ll.valores, ll.slots);
+                else b.insertar(objetivo, null, null);
+                cambios = true;
+            } else if (clave != null) {
+                b.llamar(new Program.Llamada(clave, new long[0], new int[0]));
+                cambios = true;
+            } else b.llamar(ll);
+        }
+        return cambios ? b.terminar(p.numParams) : null;
+    }
+
+    // Devuelve (creándola si hace falta y hay sitio en la tabla) la copia de f con sus parámetros fijados
+    private Program especializacion(String clave, Program f, long[] valores) {
+        Program s = especializaciones.get(clave);
+        if (s != null) return s;
+        if (especializaciones.size() >= MAX_ESPECIALIZACIONES) return null;
+        int[] slots = new int[valores.length];
+        Arrays.fill(slots, -1);
+        Bloque b = new Bloque();
+        b.insertar(f, valores, slots);
+        s = Optimizador.optimizar(b.terminar(0));
+        especializaciones.put(clave, s);
+        funciones.put(clave, s);
+        pendientes.add(clave);
+        return s;
+    }
+
+    private static boolean literales(Program.Llamada ll, int numParams) {
+        for (int k = 0; k < numParams; k++) if (ll.slots[k] >= 0) return false;
+        return true;
+    }
+
+    private static String clave(Program.Llamada ll, int numParams) {
+        StringBuilder sb = new StringBuilder(ll.nombre).append('(');
+        for (int k = 0; k < numParams; k++) {
+            if (k > 0) sb.append(',');
+            sb.append(ll.valores[k]);
+        }
+        return sb.append(')').toString();
+    }
+
+    // Un cuerpo se puede insertar si es pequeño y solo termina al final (sin ENDREPEAT sueltos que salgan antes)
+    private static boolean insertable(Program f) {
+        if (f.code.length - 1 > MAX_EN_LINEA) return false;
+        for (int pc = 0; pc < f.code.length - 1; pc += Program.longitud(f.code[pc])) {
+            if (f.code[pc] == Program.OP_HALT) return false;
+        }
+        return true;
+    }
+
+    // Construye un bloque nuevo copiando opcodes de otros; los saltos de los REPEAT se vuelven a enlazar
+    // por anidamiento, así que da igual de qué bloque venga cada trozo
+    private static final class Bloque {
+        int[] code = new int[64];
+        int n;
+        long[] constantes = new long[8];
+        int nc;
+        final List<Program.Llamada> llamadas = new ArrayList<>();
+        int[] abiertos = new int[8];
+        int nivel;
+        int maxNivel;
+
+        // Copia el opcode de p en pc; si valores no es null, los parámetros de p se sustituyen:
+        // el parámetro k pasa a ser el slot slots[k] del bloque nuevo o, si slots[k] < 0, la constante valores[k]
+        void copiar(Program p, int pc, long[] valores, int[] slots) {
+            int op = p.code[pc];
+            switch (op) {
+                case Program.OP_REPEAT:
+                case Program.OP_REPEAT_M:
+                    abrir(Program.OP_REPEAT, constante(p.constantes[p.code[pc + 1]]));
+                    break;
+                case Program.OP_REPEAT_P:
+                case Program.OP_REPEAT_MP: {
+                    int k = p.code[pc + 1];
+                    if (valores == null) abrir(Program.OP_REPEAT_P, k);
+                    else if (slots[k] >= 0) abrir(Program.OP_REPEAT_P, slots[k]);
+                    else abrir(Program.OP_REPEAT, constante(valores[k]));
+                    break;
+                }
+                case Program.OP_ENDREPEAT: {
+                    int rp = abiertos[--nivel];
+                    emitir(Program.OP_ENDREPEAT);
+                    emitir(rp);
+                    code[rp + 2] = n;
+                    break;
+                }
+                case Program.OP_CALL: {
+                    Program.Llamada ll = p.llamadas[p.code[pc + 1]];
+                    if (valores == null) {
+                        llamar(ll);
+                        break;
+                    }
+                    long[] v = ll.valores.clone();
+                    int[] s = ll.slots.clone();
+                    for (int j = 0; j < s.length; j++) {
+                        if (ll.slots[j] < 0) continue;
+                        int k = ll.slots[j];
+                        s[j] = slots[k];
+                        if (slots[k] < 0) v[j] = valores[k];
+                    }
+                    llamar(new Program.Llamada(ll.nombre, v, s));
+                    break;
+                }
+                default:
+                    for (int i = 0; i < Program.longitud(op); i++) emitir(p.code[pc + i]);
+            }
+        }
+
+        // Copia el cuerpo completo de f sin su HALT final
+        void insertar(Program f, long[] valores, int[] slots) {
+            for (int pc = 0; pc < f.code.length - 1; pc += Program.longitud(f.code[pc])) {
+                copiar(f, pc, valores, slots);
+            }
+        }
+
+        void llamar(Program.Llamada ll) {
+            emitir(Program.OP_CALL);
+            emitir(llamadas.size());
+            llamadas.add(ll);
+        }
+
+        private void abrir(int op, int operando) {
+            if (nivel == abiertos.length) abiertos = Arrays.copyOf(abiertos, nivel * 2);
+            abiertos[nivel++] = n;
+            maxNivel = Math.max(maxNivel, nivel);
+            emitir(op);
+            emitir(operando);
+            emitir(-1);
+        }
+
+        private int constante(long v) {
+            if (nc == constantes.length) constantes = Arrays.copyOf(constantes, nc * 2);
+            constantes[nc] = v;
+            return nc++;
+        }
+
+        private void emitir(int v) {
+            if (n == code.length) code = Arrays.copyOf(code, n * 2);
+            code[n++] = v;
+        }
+
+        Program terminar(int numParams) {
+            emitir(Program.OP_HALT);
+            return new Program(Arrays.copyOf(code, n), Arrays.copyOf(constantes, nc),
+                    llamadas.toArray(new Program.Llamada[0]), numParams, maxNivel, 0);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+
+// Evaluación por lotes (ver LightBot.evaluateAll y LightBot.evaluateOnMaps)
+// Los trabajadores van cogiendo el siguiente elemento pendiente de un contador compartido, así que uno que se
+// queda con elementos largos no retrasa a los demás; el hilo que llama trabaja también
+final class Evaluador {
+    private final LightBot.Result[] resultados;
+    private final AtomicInteger siguiente = new AtomicInteger();
+
+    private Evaluador(int n) {
+        resultados = new LightBot.Result[n];
+    }
+
+    // Evalúa los elementos 0 .. n - 1; cada trabajador pide a trabajadores su propia función de evaluación,
+    // en la que puede guardar lo que quiera reutilizar de un elemento a otro
+    private static List<LightBot.Result> repartir(int n, Supplier<IntFunction<LightBot.Result>> trabajadores) {
+        Evaluador e = new Evaluador(n);
+        int hilos = Math.min(n, ForkJoinPool.getCommonPoolParallelism() + 1);
+        List<ForkJoinTask<?>> tareas = new ArrayList<>();
+        for (int i = 1; i < hilos; i++) tareas.add(ForkJoinPool.commonPool().submit(() -> e.trabajar(trabajadores.get())));
+        e.trabajar(trabajadores.get());
+        for (ForkJoinTask<?> t : tareas) t.join();
+        return List.of(e.resultados);
+    }
+
+    private void trabajar(IntFunction<LightBot.Result> evaluar) {
+        for (int i; (i = siguiente.getAndIncrement()) < resultados.length; ) resultados[i] = evaluar.apply(i);
+    }
+
+    // Muchos programas sobre un mismo mapa: el mapa se parsea una vez y todos los trabajadores crean su LightBot
+    // a partir de ese Mapa; cada uno lo reutiliza con reset(), así que sus teselas, pilas y buffers se reservan
+    // una sola vez
+    // Los programas se compilan sin CacheProgramas, que es de todo el proceso y no debe llenarse con envíos sueltos
+    static List<LightBot.Result> evaluar(String[] lineas, List<String[]> programas) {
+        Mapa mapa = Mapa.de(lineas);
+        String[] inicial = new LightBot(mapa).getMap();
+        return repartir(programas.size(), () -> {
+            LightBot lb = new LightBot(mapa);
+            return i -> {
+                lb.reset();
+                RuntimeException error = null;
+                try {
+                    lb.ejecutarSinCache(programas.get(i));
+                } catch (RuntimeException ex) {
+                    error = ex;
+                }
+                return resultado(inicial, false, lb, error);
+            };
+        });
+    }
+
+    // Un programa sobre muchos mapas
+    // El movimiento no depende de las celdas y en el toro es una traslación, así que con el mismo tamaño y la
+    // misma dirección inicial el robot recorre las mismas celdas relativas a su posición de partida: basta con
+    // ejecutar el programa una vez por (filas, columnas, dirección) sobre un mapa vacío disperso con el robot
+    // en (0, 0), apuntar las celdas que enciende (su huella) y aplicarlas a cada mapa desplazadas
+    static List<LightBot.Result> evaluarEnMapas(String[] programa, List<String[]> mapas) {
+        LightBot.CompiledProgram compilado = LightBot.compile(programa);
+        Map<Long, Huella> huellas = new ConcurrentHashMap<>();
+        return repartir(mapas.size(), () -> i -> {
+            String[] lineas = mapas.get(i);
+            LightBot lb = new LightBot(lineas);
+            if (!LightBot.cambiosEmpaquetables(lineas.length, lineas[0].length())) {
+                RuntimeException error = null;
+                try {
+                    lb.runProgram(compilado);
+                } catch (RuntimeException ex) {
+                    error = ex;
+                }
+                return resultado(lineas, true, lb, error);
+            }
+            Huella h = huellas.computeIfAbsent(lb.claveHuella(), k -> new Huella(compilado, lb));
+            lb.aplicarHuella(h.celdas, h.poseFinal);
+            return resultado(lineas, true, lb, h.error);
+        });
+    }
+
+    // Celdas encendidas (empaquetadas como en getChangesSinceReset) y pose final de un programa que empieza con
+    // el robot en (0, 0), junto con la excepción que lo detuvo, si la hubo
+    private static final class Huella {
+        final long[] celdas;
+        final long poseFinal;
+        final RuntimeException error;
+
+        Huella(LightBot.CompiledProgram programa, LightBot modelo) {
+            LightBot vacio = modelo.mundoVacio();
+            RuntimeException e = null;
+            try {
+                vacio.runProgram(programa);
+            } catch (RuntimeException ex) {
+                e = ex;
+            }
+            celdas = vacio.getChangesSinceReset();
+            poseFinal = vacio.pose();
+            error = e;
+        }
+    }
+
+    private static LightBot.Result resultado(String[] inicial, boolean conRobot, LightBot lb, RuntimeException error) {
+        boolean empaquetables = LightBot.cambiosEmpaquetables(inicial.length, inicial[0].length());
+        return new LightBot.Result(inicial, conRobot, empaquetables ? lb.getChangesSinceReset() : null,
+                empaquetables ? null : lb.getMap(), lb.getRobotPosition(), lb.remainingTargets(), lb.litCount(), error);
+    }
+}
@@ -0,0 +1,151 @@
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Arrays;
+
+// Formato binario de mundos, pensado para abrirse con FileChannel.map sin parsear las celdas:
+//   cabecera de 32 bytes, big-endian: magia "LBW1", filas, columnas, fila y columna del robot, dirección del robot
+//   (0..3 en sentido horario, ver Movimiento.HORARIO), bits por celda, número de colores, un byte a 0,
+//   objetivos ('O') y celdas encendidas ('X' o 'x') del mapa
+//   paleta: un char por color
+//   celdas: desde el primer múltiplo de 8 tras la paleta, por filas, bitsCelda bits cada una empezando por los
+//   bits bajos de cada byte; los bits bajos son el índice en la paleta y el alto está reservado y siempre a 0
+// bitsCelda es 2, 4 u 8 para que ninguna celda cruce un byte, así que caben 2, 8 o 128 colores
+// Al guardar, las celdas encendidas se escriben como 'X' o 'x'
+final class FormatoBinario {
+    static final int MAGIA = 0x4C425731;
+    static final int CABECERA = 32;
+
+    private static final ValueLayout.OfInt ENTERO = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+    private static final ValueLayout.OfChar CARACTER = ValueLayout.JAVA_CHAR_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+
+    private FormatoBinario() {
+    }
+
+    private static long inicioCeldas(int numColores) {
+        return (CABECERA + 2L * numColores + 7) & ~7L;
+    }
+
+    private static long bytesCeldas(int filas, int columnas, int bitsCelda) {
+        return ((long) filas * columnas * bitsCelda + 7) >>> 3;
+    }
+
+    // Proyecta un fichero en memoria y lee solo la cabecera y la paleta; las celdas se usan tal cual están en disco
+    // La proyección es de solo lectura: las celdas encendidas se guardan aparte (ver TableroFueraDeHeap)
+    static TableroFueraDeHeap abrir(Path fichero) throws IOException {
+        Arena arena = Arena.ofShared();
+        try {
+            MemorySegment todo;
+            try (FileChannel canal = FileChannel.open(fichero, StandardOpenOption.READ)) {
+                todo = canal.map(FileChannel.MapMode.READ_ONLY, 0, canal.size(), arena);
+            }
+            long tam = todo.byteSize();
+            if (tam < CABECERA) throw new IOException("Not a LightBot world file: " + fichero);
+            if (todo.get(ENTERO, 0) != MAGIA) throw new IOException("Not a LightBot world file: " + fichero);
+            int filas = todo.get(ENTERO, 4);
+            int columnas = todo.get(ENTERO, 8);
+            int fila = todo.get(ENTERO, 12);
+            int col = todo.get(ENTERO, 16);
+            int dir = todo.get(ValueLayout.JAVA_BYTE, 20);
+            int bitsCelda = todo.get(ValueLayout.JAVA_BYTE, 21);
+            int numColores = todo.get(ValueLayout.JAVA_BYTE, 22) & 0xFF;
+            int objetivos = todo.get(ENTERO, 24);
+            int encendidas = todo.get(ENTERO, 28);
+            if (filas <= 0 || columnas <= 0 || fila < 0 || fila >= filas || col < 0 || col >= columnas
+                    || dir < 0 || dir > 3 || (bitsCelda != 2 && bitsCelda != 4 && bitsCelda != 8)
+                    || numColores == 0 || numColores > 1 << (bitsCelda - 1)) {
+                throw new IOException("Corrupt LightBot world file: " + fichero);
+            }
+            long inicio = inicioCeldas(numColores);
+            long bytes = bytesCeldas(filas, columnas, bitsCelda);
+            if (tam < inicio + bytes) throw new IOException("Truncated LightBot world file: " + fichero);
+            char[] paleta = new char[numColores];
+            for (int i = 0; i < numColores; i++) paleta[i] = todo.get(CARACTER, CABECERA + 2L * i);
+            return new TableroFueraDeHeap(arena, todo.asSlice(inicio, bytes), bitsCelda, paleta, filas, columnas,
+                    objetivos, encendidas, fila, col, Movimiento.HORARIO[dir]);
+        } catch (IOException | RuntimeException | Error e) {
+            arena.close();
+            throw e;
+        }
+    }
+
+    // Escribe el contenido actual de un tablero con el robot en (fila, col) mirando hacia dir
+    // Recorre el tablero dos veces con get(), una para la paleta y otra para las celdas, así que sirve para
+    // cualquier Tablero; se escribe en un fichero temporal que luego sustituye al destino, de forma que se puede
+    // guardar encima del fichero del que se abrió el propio tablero
+    static void guardar(Tablero t, int fila, int col, Robot.Direccion dir, Path fichero) throws IOException {
+        int[] codigos = new int[Character.MAX_VALUE + 1];
+        Arrays.fill(codigos, -1);
+        char[] colores = new char[128];
+        int numColores = 0;
+        int objetivos = 0, encendidas = 0;
+        for (int r = 0; r < t.filas; r++) {
+            for (int c = 0; c < t.columnas; c++) {
+                char ch = t.get(r, c);
+                if (codigos[ch] < 0) {
+                    if (numColores == colores.length) throw new IllegalArgumentException("Too many distinct cell types");
+                    colores[numColores] = ch;
+                    codigos[ch] = numColores++;
+                }
+                if (ch == 'O') objetivos++;
+                else if (ch == 'X' || ch == 'x') encendidas++;
+            }
+        }
+        int bitsCelda = numColores <= 2 ? 2 : numColores <= 8 ? 4 : 8;
+        long inicio = inicioCeldas(numColores);
+        long tam = inicio + bytesCeldas(t.filas, t.columnas, bitsCelda);
+
+        Path destino = fichero.toAbsolutePath();
+        Path tmp = Files.createTempFile(destino.getParent(), destino.getFileName().toString(), ".tmp");
+        try {
+            try (Arena arena = Arena.ofConfined();
+                 FileChannel canal = FileChannel.open(tmp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MemorySegment todo = canal.map(FileChannel.MapMode.READ_WRITE, 0, tam, arena);
+                todo.set(ENTERO, 0, MAGIA);
+                todo.set(ENTERO, 4, t.filas);
+                todo.set(ENTERO, 8, t.columnas);
+                todo.set(ENTERO, 12, fila);
+                todo.set(ENTERO, 16, col);
+                todo.set(ValueLayout.JAVA_BYTE, 20, (byte) Movimiento.indice(dir));
+                todo.set(ValueLayout.JAVA_BYTE, 21, (byte) bitsCelda);
+                todo.set(ValueLayout.JAVA_BYTE, 22, (byte) numColores);
+                todo.set(ENTERO, 24, objetivos);
+                todo.set(ENTERO, 28, encendidas);
+                for (int i = 0; i < numColores; i++) todo.set(CARACTER, CABECERA + 2L * i, colores[i]);
+                // Las celdas se acumulan en un byte que se escribe al llenarse
+                long o = inicio;
+                int acc = 0, usados = 0;
+                for (int r = 0; r < t.filas; r++) {
+                    for (int c = 0; c < t.columnas; c++) {
+                        acc |= codigos[t.get(r, c)] << usados;
+                        usados += bitsCelda;
+                        if (usados == 8) {
+                            todo.set(ValueLayout.JAVA_BYTE, o++, (byte) acc);
+                            acc = 0;
+                            usados = 0;
+                        }
+                    }
+                }
+                if (usados > 0) todo.set(ValueLayout.JAVA_BYTE, o, (byte) acc);
+                todo.force();
+            }
+            Files.move(tmp, destino, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    // Convierte un mapa de texto, con las mismas reglas que MapParser, sin crear ningún LightBot
+    static void convertir(String[] lineas, Path fichero) throws IOException {
+        TableroFueraDeHeap t = new TableroFueraDeHeap(lineas);
+        try {
+            guardar(t, t.filaRobot, t.colRobot, t.dirRobot, fichero);
+        } finally {
+            t.cerrar();
+        }
+    }
+}
@@ -0,0 +1,660 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Segundo nivel de compilación para programas muy usados: traduce los opcodes a bytecode JVM y lo carga
+// como clase oculta (MethodHandles.Lookup.defineHiddenClass), sin dependencias externas
+// Cada bloque (principal y funciones alcanzables) pasa a ser un método estático
+//     static long mK(Tablero grid, long pose, long arg0, ..., long argN)
+// que mantiene fila, columna y dirección en variables locales, enciende celdas con Tablero.luz y devuelve la pose final empaquetada
+// como Robot.pose(); los REPEAT son bucles de verdad con el mismo avance rápido por periodo del intérprete,
+// salvo los de solo movimiento (OP_REPEAT_M y OP_REPEAT_MP), cuyo cuerpo va en un método aparte y se eleva a n
+// con Movimiento.repetir igual que en LightBot.resumir
+final class GeneradorBytecode {
+    private static final int LIMITE_METODO = 8000;    // Por encima HotSpot no compila el método con C1/C2
+    private static final int LIMITE_PROFUNDIDAD = 64; // Las cadenas de CALL más profundas se quedan en el intérprete
+    private static final MethodType TIPO_MAIN = MethodType.methodType(long.class, Tablero.class, long.class);
+
+    private static final int NOMBRE_CLASE = 1; // Índices fijos al principio de la constant pool
+    private static final int CLASE = 2;
+    private static final int OBJECT = 4;
+    private static final int CODE = 5;
+
+    private final Program[] bloques; // Tabla de Program.enlazar: el bloque con id k pasa a ser el método mK
+    private final List<Bytes> metodos = new ArrayList<>();
+
+    private final Bytes pool = new Bytes();
+    private final Map<String, Integer> constantes = new HashMap<>();
+    private int numConstantes = 1;
+
+    private GeneradorBytecode(Program[] bloques) {
+        this.bloques = bloques;
+    }
+
+    // Genera y carga el código de un programa; devuelve un MethodHandle con el tipo TIPO_MAIN,
+    // o null si el programa no es apto (llamadas recursivas o muy profundas, métodos demasiado grandes)
+    // y debe seguir en el intérprete
+    static MethodHandle generar(Program[] bloques) {
+        GeneradorBytecode g = new GeneradorBytecode(bloques);
+        if (!g.comprobarLlamadas()) return null;
+        try {
+            byte[] clase = g.clase();
+            if (clase == null) return null;
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(clase, true);
+            return lookup.findStatic(lookup.lookupClass(), "m0", TIPO_MAIN);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    // Recorre el grafo de llamadas desde el bloque principal sin recursión y comprueba que no haya ciclos
+    // ni cadenas más profundas que LIMITE_PROFUNDIDAD
+    private boolean comprobarLlamadas() {
+        int[] estado = new int[bloques.length]; // 1 en el camino actual, 2 terminado
+        Deque<Integer> camino = new ArrayDeque<>();
+        Deque<Integer> siguiente = new ArrayDeque<>();
+        camino.push(0);
+        siguiente.push(0);
+        estado[0] = 1;
+        while (!camino.isEmpty()) {
+            Program p = bloques[camino.peek()];
+            int pc = siguiente.pop();
+            while (pc < p.code.length && p.code[pc] != Program.OP_CALL) pc += Program.longitud(p.code[pc]);
+            if (pc >= p.code.length) {
+                estado[camino.pop()] = 2;
+                continue;
+            }
+            siguiente.push(pc + 2);
+            int f = p.llamadas[p.code[pc + 1]].destino;
+            if (estado[f] == 0) {
+                if (camino.size() >= LIMITE_PROFUNDIDAD) return false;
+                estado[f] = 1;
+                camino.push(f);
+                siguiente.push(0);
+            } else if (estado[f] == 1) return false;
+        }
+        return true;
+    }
+
+    // Construye el fichero .class completo; versión 49 para no tener que emitir StackMapTable
+    private byte[] clase() {
+        utf8("LightBotGenerado");
+        clase(NOMBRE_CLASE);
+        utf8("java/lang/Object");
+        clase(OBJECT - 1);
+        utf8("Code");
+        for (int k = 0; k < bloques.length; k++) {
+            if (!metodo("m" + k, bloques[k], 0, bloques[k].code.length)) return null;
+        }
+        Bytes out = new Bytes();
+        out.u4(0xCAFEBABE);
+        out.u2(0);
+        out.u2(49);
+        out.u2(numConstantes);
+        out.add(pool);
+        out.u2(0x0030); // ACC_FINAL | ACC_SUPER
+        out.u2(CLASE);
+        out.u2(OBJECT);
+        out.u2(0);      // interfaces
+        out.u2(0);      // campos
+        out.u2(metodos.size());
+        for (Bytes m : metodos) out.add(m);
+        out.u2(0);      // atributos
+        return out.toArray();
+    }
+
+    // Genera un método estático con los opcodes [desde, hasta) de un bloque: el bloque entero o el cuerpo de un
+    // REPEAT de solo movimiento, que devuelve la pose tras una vuelta; devuelve false si supera LIMITE_METODO
+    private boolean metodo(String nombre, Program p, int desde, int hasta) {
+        Ensamblador a = new Ensamblador(p.numParams, p.maxAnidamiento);
+        a.prologo(referencia(9, "Tablero", "filas", "I"), referencia(9, "Tablero", "columnas", "I"));
+        int[] code = p.code;
+        int[] inicio = new int[p.maxAnidamiento];
+        int[] fin = new int[p.maxAnidamiento];
+        int nivel = 0;
+        int maxPila = 8;
+        for (int pc = desde, siguiente; pc < hasta; pc = siguiente) {
+            siguiente = pc + Program.longitud(code[pc]);
+            switch (code[pc]) {
+                case Program.OP_LEFT:
+                    a.girar(3);
+                    break;
+                case Program.OP_RIGHT:
+                    a.girar(1);
+                    break;
+                case Program.OP_FORWARD:
+                    a.avanzar();
+                    break;
+                case Program.OP_TURN:
+                    a.girar(code[pc + 1]);
+                    break;
+                case Program.OP_MOVE:
+                    a.mover(constanteLong(code[pc + 1]), constanteLong(-code[pc + 1]),
+                            referencia(10, "java/lang/Math", "floorMod", "(JJ)J"));
+                    break;
+                case Program.OP_LIGHT:
+                    a.luz(referencia(10, "Tablero", "luz", "(II)V"));
+                    break;
+                case Program.OP_REPEAT:
+                    a.ldc2(constanteLong(p.constantes[code[pc + 1]]));
+                    inicio[nivel] = a.nuevaEtiqueta();
+                    fin[nivel] = a.nuevaEtiqueta();
+                    a.entrarBucle(nivel, inicio[nivel], fin[nivel]);
+                    nivel++;
+                    break;
+                case Program.OP_REPEAT_M:
+                case Program.OP_REPEAT_MP: {
+                    // Una vuelta del cuerpo desde (0, 0) con cada dirección da su transformación rígida
+                    String metodoCuerpo = nombre + "_" + pc;
+                    siguiente = code[pc + 2];
+                    if (!metodo(metodoCuerpo, p, pc + 3, siguiente - 2)) return false;
+                    int cuerpo = metodoRef(metodoCuerpo, p.numParams);
+                    for (int d = 0; d < 4; d++) a.ejecutarCuerpo(constanteLong(d), p.numParams, cuerpo);
+                    if (code[pc] == Program.OP_REPEAT_M) a.ldc2(constanteLong(p.constantes[code[pc + 1]]));
+                    else a.cargarParametro(code[pc + 1]);
+                    a.repetirMovimiento(referencia(10, "Movimiento", "repetir", "(JJJJJJII)J"));
+                    maxPila = Math.max(maxPila, Math.max(14, 9 + 2 * p.numParams));
+                    break;
+                }
+                case Program.OP_REPEAT_P:
+                    a.cargarParametro(code[pc + 1]);
+                    inicio[nivel] = a.nuevaEtiqueta();
+                    fin[nivel] = a.nuevaEtiqueta();
+                    a.entrarBucle(nivel, inicio[nivel], fin[nivel]);
+                    nivel++;
+                    break;
+                case Program.OP_ENDREPEAT:
+                    nivel--;
+                    a.salirBucle(nivel, inicio[nivel], fin[nivel]);
+                    break;
+                case Program.OP_CALL: {
+                    Program.Llamada ll = p.llamadas[code[pc + 1]];
+                    Program f = bloques[ll.destino];
+                    a.prepararLlamada();
+                    for (int i = 0; i < f.numParams; i++) {
+                        if (ll.slots[i] >= 0) a.cargarParametro(ll.slots[i]);
+                        else a.ldc2(constanteLong(ll.valores[i]));
+                    }
+                    maxPila = Math.max(maxPila, 8 + 2 * f.numParams);
+                    a.llamar(metodoRef("m" + ll.destino, f.numParams));
+                    break;
+                }
+                default:
+                    a.retorno();
+            }
+            if (a.code.size() > LIMITE_METODO) return false;
+        }
+        if (hasta < code.length) a.retorno();
+        Bytes codigo = a.terminar();
+        Bytes m = new Bytes();
+        m.u2(0x000A); // ACC_PRIVATE | ACC_STATIC
+        m.u2(utf8(nombre));
+        m.u2(utf8(descriptor(p.numParams)));
+        m.u2(1);
+        m.u2(CODE);
+        m.u4(12 + codigo.size());
+        m.u2(maxPila);
+        m.u2(a.maxLocals);
+        m.u4(codigo.size());
+        m.add(codigo);
+        m.u2(0); // tabla de excepciones
+        m.u2(0); // atributos
+        metodos.add(m);
+        return true;
+    }
+
+    private static String descriptor(int numParams) {
+        StringBuilder sb = new StringBuilder("(LTablero;J");
+        for (int i = 0; i < numParams; i++) sb.append('J');
+        return sb.append(")J").toString();
+    }
+
+    // --- Constant pool ---
+
+    private int utf8(String s) {
+        Integer i = constantes.get("U" + s);
+        if (i != null) return i;
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        pool.u1(1);
+        pool.u2(b.length);
+        pool.add(b, b.length);
+        constantes.put("U" + s, numConstantes);
+        return numConstantes++;
+    }
+
+    private int clase(int nombre) {
+        pool.u1(7);
+        pool.u2(nombre);
+        return numConstantes++;
+    }
+
+    private int constanteLong(long v) {
+        Integer i = constantes.get("J" + v);
+        if (i != null) return i;
+        pool.u1(5);
+        pool.u4((int) (v >>> 32));
+        pool.u4((int) v);
+        constantes.put("J" + v, numConstantes);
+        int r = numConstantes;
+        numConstantes += 2; // los long ocupan dos entradas
+        return r;
+    }
+
+    private int metodoRef(String metodo, int numParams) {
+        String clave = "M" + metodo;
+        Integer i = constantes.get(clave);
+        if (i != null) return i;
+        int nombre = utf8(metodo);
+        int tipo = utf8(descriptor(numParams));
+        pool.u1(12);
+        pool.u2(nombre);
+        pool.u2(tipo);
+        int nt = numConstantes++;
+        pool.u1(10);
+        pool.u2(CLASE);
+        pool.u2(nt);
+        constantes.put(clave, numConstantes);
+        return numConstantes++;
+    }
+
+    // Referencia a un campo (etiqueta 9) o método (etiqueta 10) de otra clase, como Math.floorMod(long, long)
+    private int referencia(int etiqueta, String claseExterna, String nombre, String tipo) {
+        String clave = "R" + claseExterna + "." + nombre + tipo;
+        Integer i = constantes.get(clave);
+        if (i != null) return i;
+        int c = clase(utf8(claseExterna));
+        int n = utf8(nombre);
+        int t = utf8(tipo);
+        pool.u1(12);
+        pool.u2(n);
+        pool.u2(t);
+        int nt = numConstantes++;
+        pool.u1(etiqueta);
+        pool.u2(c);
+        pool.u2(nt);
+        constantes.put(clave, numConstantes);
+        return numConstantes++;
+    }
+
+    // Emite las secuencias de bytecode de cada opcode sobre las variables locales
+    //     0 grid, 1-2 pose, 3.. argumentos (dos slots cada uno), luego fila, columna, dirección,
+    //     filas, columnas y siete slots por nivel de REPEAT
+    //     (vueltas pendientes, vueltas hechas y pose de entrada)
+    private static final class Ensamblador {
+        final Bytes code = new Bytes();
+        final int fila, col, dir, filas, columnas, bucles;
+        final int maxLocals;
+        private int[] etiquetas = new int[16];
+        private int numEtiquetas = 0;
+        private final List<int[]> saltos = new ArrayList<>(); // {posición del offset, origen, etiqueta, ancho}
+
+        Ensamblador(int numParams, int maxAnidamiento) {
+            fila = 3 + 2 * numParams;
+            col = fila + 1;
+            dir = fila + 2;
+            filas = fila + 3;
+            columnas = fila + 4;
+            bucles = fila + 5;
+            maxLocals = bucles + 7 * maxAnidamiento;
+        }
+
+        int nuevaEtiqueta() {
+            if (numEtiquetas == etiquetas.length) etiquetas = Arrays.copyOf(etiquetas, numEtiquetas * 2);
+            etiquetas[numEtiquetas] = -1;
+            return numEtiquetas++;
+        }
+
+        void marcar(int etiqueta) {
+            etiquetas[etiqueta] = code.size();
+        }
+
+        void saltar(int opcode, int etiqueta) {
+            int origen = code.size();
+            code.u1(opcode);
+            saltos.add(new int[]{ code.size(), origen, etiqueta, 2 });
+            code.u2(0);
+        }
+
+        void local(int opcode, int slot) {
+            if (slot > 255) {
+                code.u1(0xC4); // wide
+                code.u1(opcode);
+                code.u2(slot);
+            } else {
+                code.u1(opcode);
+                code.u1(slot);
+            }
+        }
+
+        void iinc(int slot, int delta) {
+            if (slot > 255) {
+                code.u1(0xC4);
+                code.u1(0x84);
+                code.u2(slot);
+                code.u2(delta);
+            } else {
+                code.u1(0x84);
+                code.u1(slot);
+                code.u1(delta);
+            }
+        }
+
+        void ldc2(int indice) {
+            code.u1(0x14); // ldc2_w
+            code.u2(indice);
+        }
+
+        void cargarParametro(int slot) {
+            local(0x16, 3 + 2 * slot); // lload
+        }
+
+        // Desempaqueta la pose del slot 1 en fila, columna y dirección
+        private void desempaquetar() {
+            local(0x16, 1);
+            code.u1(0x10); code.u1(33); // bipush 33
+            code.u1(0x7D);              // lushr
+            code.u1(0x88);              // l2i
+            local(0x36, fila);
+            local(0x16, 1);
+            code.u1(0x05);              // iconst_2
+            code.u1(0x7D);              // lushr
+            code.u1(0x88);              // l2i
+            code.u1(0x04);              // iconst_1
+            code.u1(0x78);              // ishl
+            code.u1(0x04);              // iconst_1
+            code.u1(0x7C);              // iushr
+            local(0x36, col);
+            local(0x16, 1);
+            code.u1(0x88);              // l2i
+            code.u1(0x06);              // iconst_3
+            code.u1(0x7E);              // iand
+            local(0x36, dir);
+        }
+
+        private void empaquetar() {
+            local(0x15, fila);
+            code.u1(0x85);              // i2l
+            code.u1(0x10); code.u1(33); // bipush 33
+            code.u1(0x79);              // lshl
+            local(0x15, col);
+            code.u1(0x85);
+            code.u1(0x05);              // iconst_2
+            code.u1(0x79);
+            code.u1(0x81);              // lor
+            local(0x15, dir);
+            code.u1(0x85);
+            code.u1(0x81);
+        }
+
+        void prologo(int campoFilas, int campoColumnas) {
+            desempaquetar();
+            code.u1(0x2A);              // aload_0
+            code.u1(0xB4);              // getfield
+            code.u2(campoFilas);
+            local(0x36, filas);
+            code.u1(0x2A);
+            code.u1(0xB4);
+            code.u2(campoColumnas);
+            local(0x36, columnas);
+        }
+
+        // dir = (dir + k) & 3
+        void girar(int k) {
+            local(0x15, dir);
+            code.u1(0x03 + k);          // iconst_k
+            code.u1(0x60);              // iadd
+            code.u1(0x06);
+            code.u1(0x7E);
+            local(0x36, dir);
+        }
+
+        // Un paso en la dirección actual, con el mapa conectado por los bordes
+        void avanzar() {
+            int arriba = nuevaEtiqueta(), derecha = nuevaEtiqueta(), abajo = nuevaEtiqueta();
+            int izquierda = nuevaEtiqueta(), fin = nuevaEtiqueta();
+            local(0x15, dir);
+            int origen = code.size();
+            code.u1(0xAA);              // tableswitch
+            while (code.size() % 4 != 0) code.u1(0);
+            saltoAncho(origen, izquierda);
+            code.u4(0);
+            code.u4(3);
+            saltoAncho(origen, arriba);
+            saltoAncho(origen, derecha);
+            saltoAncho(origen, abajo);
+            saltoAncho(origen, izquierda);
+            marcar(arriba);
+            decrementar(fila, filas, fin);
+            marcar(derecha);
+            incrementar(col, columnas, fin);
+            marcar(abajo);
+            incrementar(fila, filas, fin);
+            marcar(izquierda);
+            decrementar(col, columnas, fin);
+            marcar(fin);
+        }
+
+        // k pasos en la dirección actual: v = floorMod(v ± k, límite)
+        void mover(int mas, int menos, int floorMod) {
+            int arriba = nuevaEtiqueta(), derecha = nuevaEtiqueta(), abajo = nuevaEtiqueta();
+            int izquierda = nuevaEtiqueta(), fin = nuevaEtiqueta();
+            local(0x15, dir);
+            int origen = code.size();
+            code.u1(0xAA);
+            while (code.size() % 4 != 0) code.u1(0);
+            saltoAncho(origen, izquierda);
+            code.u4(0);
+            code.u4(3);
+            saltoAncho(origen, arriba);
+            saltoAncho(origen, derecha);
+            saltoAncho(origen, abajo);
+            saltoAncho(origen, izquierda);
+            marcar(arriba);
+            desplazar(fila, filas, menos, floorMod, fin);
+            marcar(derecha);
+            desplazar(col, columnas, mas, floorMod, fin);
+            marcar(abajo);
+            desplazar(fila, filas, mas, floorMod, fin);
+            marcar(izquierda);
+            desplazar(col, columnas, menos, floorMod, fin);
+            marcar(fin);
+        }
+
+        private void desplazar(int v, int limite, int delta, int floorMod, int fin) {
+            local(0x15, v);
+            code.u1(0x85);
+            ldc2(delta);
+            code.u1(0x61);              // ladd
+            local(0x15, limite);
+            code.u1(0x85);
+            code.u1(0xB8);
+            code.u2(floorMod);
+            code.u1(0x88);
+            local(0x36, v);
+            saltar(0xA7, fin);
+        }
+
+        private void saltoAncho(int origen, int etiqueta) {
+            saltos.add(new int[]{ code.size(), origen, etiqueta, 4 });
+            code.u4(0);
+        }
+
+        private void decrementar(int v, int limite, int fin) {
+            iinc(v, -1);
+            local(0x15, v);
+            saltar(0x9C, fin);          // ifge
+            local(0x15, limite);
+            code.u1(0x04);
+            code.u1(0x64);              // isub
+            local(0x36, v);
+            saltar(0xA7, fin);          // goto
+        }
+
+        private void incrementar(int v, int limite, int fin) {
+            iinc(v, 1);
+            local(0x15, v);
+            local(0x15, limite);
+            saltar(0xA1, fin);          // if_icmplt
+            code.u1(0x03);
+            local(0x36, v);
+            saltar(0xA7, fin);
+        }
+
+        // grid.luz(fila, columna)
+        void luz(int luz) {
+            code.u1(0x2A);              // aload_0
+            local(0x15, fila);
+            local(0x15, col);
+            code.u1(0xB6);              // invokevirtual
+            code.u2(luz);
+        }
+
+        // Con el número de vueltas (long) en la pila
+        void entrarBucle(int nivel, int inicio, int fin) {
+            int n = bucles + 7 * nivel;
+            local(0x37, n);             // lstore
+            local(0x16, n);
+            code.u1(0x09);              // lconst_0
+            code.u1(0x94);              // lcmp
+            saltar(0x9E, fin);          // ifle
+            code.u1(0x09);
+            local(0x37, n + 2);
+            local(0x15, fila);
+            local(0x36, n + 4);
+            local(0x15, col);
+            local(0x36, n + 5);
+            local(0x15, dir);
+            local(0x36, n + 6);
+            marcar(inicio);
+        }
+
+        void salirBucle(int nivel, int inicio, int fin) {
+            int n = bucles + 7 * nivel;
+            int comprobar = nuevaEtiqueta();
+            local(0x16, n);
+            code.u1(0x0A);              // lconst_1
+            code.u1(0x65);              // lsub
+            local(0x37, n);
+            local(0x16, n + 2);
+            code.u1(0x0A);
+            code.u1(0x61);              // ladd
+            local(0x37, n + 2);
+            local(0x16, n);
+            local(0x16, n + 2);
+            code.u1(0x94);
+            saltar(0x9B, comprobar);    // iflt
+            local(0x15, fila);
+            local(0x15, n + 4);
+            saltar(0xA0, comprobar);
+            local(0x15, col);
+            local(0x15, n + 5);
+            saltar(0xA0, comprobar);
+            local(0x15, dir);
+            local(0x15, n + 6);
+            saltar(0xA0, comprobar);
+            local(0x16, n);
+            local(0x16, n + 2);
+            code.u1(0x71);              // lrem
+            local(0x37, n);
+            marcar(comprobar);
+            local(0x16, n);
+            code.u1(0x09);
+            code.u1(0x94);
+            saltar(0x9D, inicio);       // ifgt
+            marcar(fin);
+        }
+
+        // Deja en la pila la pose con la que acaba una vuelta del cuerpo empezando en la pose constante indicada
+        void ejecutarCuerpo(int pose, int numParams, int cuerpo) {
+            code.u1(0x2A);
+            ldc2(pose);
+            for (int i = 0; i < numParams; i++) cargarParametro(i);
+            code.u1(0xB8);
+            code.u2(cuerpo);
+        }
+
+        // Con las cuatro poses de ejecutarCuerpo y el número de vueltas en la pila
+        void repetirMovimiento(int repetir) {
+            empaquetar();
+            local(0x15, filas);
+            local(0x15, columnas);
+            code.u1(0xB8);
+            code.u2(repetir);
+            local(0x37, 1);
+            desempaquetar();
+        }
+
+        void prepararLlamada() {
+            code.u1(0x2A);
+            empaquetar();
+        }
+
+        void llamar(int metodo) {
+            code.u1(0xB8);              // invokestatic
+            code.u2(metodo);
+            local(0x37, 1);
+            desempaquetar();
+        }
+
+        void retorno() {
+            empaquetar();
+            code.u1(0xAD);              // lreturn
+        }
+
+        Bytes terminar() {
+            for (int[] s : saltos) {
+                int offset = etiquetas[s[2]] - s[1];
+                if (s[3] == 2) code.putU2(s[0], offset);
+                else code.putU4(s[0], offset);
+            }
+            return code;
+        }
+    }
+
+    // Buffer de bytes big-endian que crece según se necesita
+    private static final class Bytes {
+        private byte[] b = new byte[256];
+        private int n = 0;
+
+        int size() { return n; }
+
+        void u1(int v) {
+            if (n == b.length) b = Arrays.copyOf(b, n * 2);
+            b[n++] = (byte) v;
+        }
+
+        void u2(int v) {
+            u1(v >>> 8);
+            u1(v);
+        }
+
+        void u4(int v) {
+            u2(v >>> 16);
+            u2(v);
+        }
+
+        void putU2(int pos, int v) {
+            b[pos] = (byte) (v >>> 8);
+            b[pos + 1] = (byte) v;
+        }
+
+        void putU4(int pos, int v) {
+            putU2(pos, v >>> 16);
+            putU2(pos + 2, v);
+        }
+
+        void add(byte[] otro, int len) {
+            for (int i = 0; i < len; i++) u1(otro[i]);
+        }
+
+        void add(Bytes otro) {
+            add(otro.b, otro.n);
+        }
+
+        byte[] toArray() {
+            return Arrays.copyOf(b, n);
+        }
+    }
+}
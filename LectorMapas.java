@@ -0,0 +1,231 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+// Parsers de mapas de texto que no crean un String por fila, con las mismas reglas que MapParser
+// (U, D, L y R marcan el robot y quedan como '.'; si hay varios, vale el último)
+// Las filas se separan con '\n' o "\r\n", el último separador es opcional y todas las filas deben medir lo mismo
+// Un '\r' que no va seguido de '\n' es una celda más
+//  - leer(Reader): lee carácter a carácter por bloques y construye cada fila directamente en su char[]
+//  - mapa(byte[]) y fueraDeHeap(byte[]): ASCII en memoria, con el mismo separador en todas las filas; como todas
+//    miden lo mismo, la fila r empieza en r * paso y las filas se reparten entre los hilos del ForkJoinPool común
+//    sin buscar antes los saltos de línea
+final class LectorMapas {
+    // Por debajo de este número de celdas un trozo del mapa se parsea en el hilo actual sin dividirlo más
+    private static final int CELDAS_POR_TROZO = 1 << 18;
+
+    // Tipo de cada byte ASCII: 0 celda normal, 1 robot, 2 objetivo, 3 encendida y 4 no válido
+    private static final byte[] TIPOS = new byte[128];
+
+    static {
+        TIPOS['U'] = TIPOS['D'] = TIPOS['L'] = TIPOS['R'] = 1;
+        TIPOS['O'] = 2;
+        TIPOS['X'] = TIPOS['x'] = 3;
+        TIPOS['\n'] = 4;
+    }
+
+    private final List<char[]> filas = new ArrayList<>();
+    private char[] fila = new char[64];
+    private int n;                 // Celdas leídas de la fila actual
+    private int columnas = -1;     // Se fija al terminar la primera fila
+    private boolean retorno;       // El último carácter fue un '\r' que aún no se sabe si es parte de "\r\n"
+    private int filaRobot = -1;
+    private int colRobot = -1;
+    private Robot.Direccion dirRobot;
+
+    private LectorMapas() {
+    }
+
+    // Lee un mapa completo de un Reader, sin cerrarlo
+    static Mapa leer(Reader in) throws IOException {
+        LectorMapas l = new LectorMapas();
+        char[] buf = new char[1 << 13];
+        for (int leidos; (leidos = in.read(buf)) >= 0; ) {
+            for (int i = 0; i < leidos; i++) {
+                char ch = buf[i];
+                if (ch == '\n') {
+                    l.retorno = false;
+                    l.terminarFila();
+                    continue;
+                }
+                if (l.retorno) {
+                    l.retorno = false;
+                    l.poner('\r');
+                }
+                if (ch == '\r') l.retorno = true;
+                else l.poner(ch);
+            }
+        }
+        if (l.retorno) l.poner('\r');
+        if (l.n > 0) l.terminarFila();
+        if (l.filas.isEmpty()) throw new IllegalArgumentException("Empty map");
+        if (l.dirRobot == null) throw new IllegalArgumentException("No se encontro posicion de inicio del robot");
+        return new Mapa(l.filas.toArray(new char[0][]), l.filaRobot, l.colRobot, l.dirRobot);
+    }
+
+    private void poner(char ch) {
+        if (n == fila.length) {
+            if (columnas >= 0) throw new IllegalArgumentException("Rows have different lengths");
+            fila = Arrays.copyOf(fila, n * 2);
+        }
+        Robot.Direccion d = Robot.direccion(ch);
+        if (d != null) {
+            filaRobot = filas.size();
+            colRobot = n;
+            dirRobot = d;
+            ch = '.';
+        }
+        fila[n++] = ch;
+    }
+
+    private void terminarFila() {
+        if (columnas < 0) {
+            if (n == 0) throw new IllegalArgumentException("Empty map");
+            columnas = n;
+            filas.add(Arrays.copyOf(fila, n));
+        } else {
+            if (n != columnas) throw new IllegalArgumentException("Rows have different lengths");
+            filas.add(fila);
+        }
+        fila = new char[columnas];
+        n = 0;
+    }
+
+    // Tamaño de un mapa en bytes, deducido de la primera fila y de la longitud total
+    static final class Geometria {
+        final int filas;
+        final int columnas;
+        final int fin;   // Longitud del separador de filas: 1 para '\n' y 2 para "\r\n"
+        final int paso;  // Distancia entre el comienzo de dos filas seguidas
+
+        private Geometria(int filas, int columnas, int fin) {
+            this.filas = filas;
+            this.columnas = columnas;
+            this.fin = fin;
+            this.paso = columnas + fin;
+        }
+
+        long celdas() {
+            return (long) filas * columnas;
+        }
+    }
+
+    static Geometria geometria(byte[] datos) {
+        int l = datos.length;
+        int salto = 0;
+        while (salto < l && datos[salto] != '\n') salto++;
+        if (salto == l) {
+            if (l == 0) throw new IllegalArgumentException("Empty map");
+            return new Geometria(1, l, 1);
+        }
+        int fin = salto > 0 && datos[salto - 1] == '\r' ? 2 : 1;
+        int columnas = salto - (fin - 1);
+        if (columnas == 0) throw new IllegalArgumentException("Empty map");
+        int paso = columnas + fin;
+        if (l % paso == 0) return new Geometria(l / paso, columnas, fin);
+        if ((l + fin) % paso == 0) return new Geometria((l + fin) / paso, columnas, fin);
+        throw new IllegalArgumentException("Rows have different lengths");
+    }
+
+    // Mapa en el heap, con una fila char[] por cada fila de datos
+    static Mapa mapa(byte[] datos, Geometria g) {
+        char[][] celdas = new char[g.filas][];
+        long[] r = ForkJoinPool.commonPool().invoke(new Trozo(datos, g, 0, g.filas, celdas, null));
+        if (r[2] < 0) throw new IllegalArgumentException("No se encontro posicion de inicio del robot");
+        int fila = (int) (r[2] / g.columnas), col = (int) (r[2] % g.columnas);
+        return new Mapa(celdas, fila, col, Robot.direccion((char) datos[fila * g.paso + col]));
+    }
+
+    // Mapa en memoria nativa: cada fila se copia tal cual, porque con la paleta identidad el byte ASCII ya es
+    // el índice de su carácter (ver TableroFueraDeHeap)
+    static TableroFueraDeHeap fueraDeHeap(byte[] datos, Geometria g) {
+        Arena arena = Arena.ofShared();
+        try {
+            MemorySegment celdas = arena.allocate(g.celdas());
+            long[] r = ForkJoinPool.commonPool().invoke(new Trozo(datos, g, 0, g.filas, null, celdas));
+            if (r[2] < 0) throw new IllegalArgumentException("No se encontro posicion de inicio del robot");
+            int fila = (int) (r[2] / g.columnas), col = (int) (r[2] % g.columnas);
+            char[] paleta = new char[128];
+            for (int i = 0; i < paleta.length; i++) paleta[i] = (char) i;
+            return new TableroFueraDeHeap(arena, celdas, 8, paleta, g.filas, g.columnas, (int) r[0], (int) r[1],
+                    fila, col, Robot.direccion((char) datos[fila * g.paso + col]));
+        } catch (RuntimeException | Error e) {
+            arena.close();
+            throw e;
+        }
+    }
+
+    // Parsea las filas [desde, hasta) en celdas (heap) o en destino (memoria nativa)
+    // Devuelve { objetivos, encendidas, posición del último robot como fila * columnas + columna o -1 }
+    @SuppressWarnings("serial")
+    private static final class Trozo extends RecursiveTask<long[]> {
+        private final byte[] datos;
+        private final Geometria g;
+        private final int desde;
+        private final int hasta;
+        private final char[][] celdas;
+        private final MemorySegment destino;
+
+        Trozo(byte[] datos, Geometria g, int desde, int hasta, char[][] celdas, MemorySegment destino) {
+            this.datos = datos;
+            this.g = g;
+            this.desde = desde;
+            this.hasta = hasta;
+            this.celdas = celdas;
+            this.destino = destino;
+        }
+
+        @Override
+        protected long[] compute() {
+            if (hasta - desde > 1 && (long) (hasta - desde) * g.columnas > CELDAS_POR_TROZO) {
+                int mitad = (desde + hasta) >>> 1;
+                Trozo izquierda = new Trozo(datos, g, desde, mitad, celdas, destino);
+                izquierda.fork();
+                long[] b = new Trozo(datos, g, mitad, hasta, celdas, destino).compute();
+                long[] a = izquierda.join();
+                return new long[]{ a[0] + b[0], a[1] + b[1], Math.max(a[2], b[2]) };
+            }
+            long objetivos = 0, encendidas = 0, robot = -1;
+            int columnas = g.columnas;
+            for (int r = desde; r < hasta; r++) {
+                int inicio = r * g.paso;
+                comprobarFin(r, inicio + columnas);
+                char[] fila = null;
+                if (celdas != null) fila = celdas[r] = new char[columnas];
+                else MemorySegment.copy(datos, inicio, destino, ValueLayout.JAVA_BYTE, (long) r * columnas, columnas);
+                for (int c = 0; c < columnas; c++) {
+                    byte b = datos[inicio + c];
+                    if (fila != null) fila[c] = (char) b;
+                    if (b < 0) throw new IllegalArgumentException("Non-ASCII cell at " + r + "," + c);
+                    switch (TIPOS[b]) {
+                        case 0: break;
+                        case 1:
+                            robot = (long) r * columnas + c;
+                            if (fila != null) fila[c] = '.';
+                            else destino.set(ValueLayout.JAVA_BYTE, robot, (byte) '.');
+                            break;
+                        case 2: objetivos++; break;
+                        case 3: encendidas++; break;
+                        default: throw new IllegalArgumentException("Rows have different lengths");
+                    }
+                }
+            }
+            return new long[]{ objetivos, encendidas, robot };
+        }
+
+        // Detrás de cada fila tiene que venir el separador completo, salvo en la última si no lleva
+        private void comprobarFin(int r, int p) {
+            if (p == datos.length && r == g.filas - 1) return;
+            if (g.fin == 2 && datos[p++] != '\r' || datos[p] != '\n') {
+                throw new IllegalArgumentException("Rows have different lengths");
+            }
+        }
+    }
+}
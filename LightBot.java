@@ -1,63 +1,474 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.invoke.MethodHandle;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.*;
-import java.util.regex.Pattern;
 
 // Clase principal que gestiona el mundo de LightBot, almacena la cuadrícula, el robot y las funciones definidas
 // Permite parsear funciones, ejecutar programas y reiniciar el estado cuando sea necesario
-public class LightBot {
-    private char[][] grid;
+// Los mapas enormes pueden vivir fuera del heap (ver create/createOffHeap) o proyectarse desde un fichero
+// binario (ver load); close() libera esa memoria
+public class LightBot implements AutoCloseable {
+    private Tablero grid;
     private Robot robot;
 
-    private char[][] originalGrid;
     private int originalRow;
     private int originalCol;
     private Robot.Direccion originalDir;
 
-    private Map<String, List<String>> functionBodies = new HashMap<>(); // Cuerpos de funciones: nombre -> lista de instrucciones
-    private Map<String, List<String>> functionParams = new HashMap<>(); // Parámetros de funciones: nombre -> lista de nombres de parámetros
+    private CacheProgramas.Compilado compiled;                // Último programa ejecutado, sacado de CacheProgramas
+    private Program[] bloques;                                // Sus bloques enlazados: 0 es el principal, el resto funciones
+    private int runs;                                         // Ejecuciones seguidas del último programa
+    private int compileThreshold = 1000;
+    private MethodHandle generated;                           // Bytecode del último programa, si ya se ha generado
+    private long[] args = new long[16];                       // Pila de marcos de argumentos de las llamadas en curso
+
+    // Pila de control del intérprete, en arrays paralelos que se reutilizan entre ejecuciones
+    private int maxCallDepth = 1 << 20;
+    private int[] retBloque = new int[16];          // Id del bloque al que vuelve cada CALL
+    private int[] retPc = new int[16];              // pc de retorno
+    private int[] retBase = new int[16];            // Base del marco de argumentos del llamante
+    private int[] retBucles = new int[16];          // Cima de la pila de bucles del llamante
+    private long[] veces = new long[16];            // Vueltas pendientes de cada REPEAT en curso
+    private long[] hechas = new long[16];           // Vueltas completadas de cada REPEAT en curso
+    private long[] entrada = new long[16];          // Pose con la que se entró en cada REPEAT en curso
+    private Movimiento[] acumulados = new Movimiento[16]; // Movimiento acumulado fuera de cada REPEAT que se está resumiendo
+    private long[] potencias = new long[16];              // Vueltas de cada REPEAT que se está resumiendo
+
+    private static final int TRAMO = 1 << 13;
+    private char[] tramo;                                     // Buffer de writeMap, de como mucho TRAMO celdas
 
     // Constructor: recibe las líneas de texto que describen el mundo y la posición inicial del robot
-    // Lee el mapa, crea la cuadrícula, guarda la posición y dirección originales para permitir reinicios posteriores
+    // El mapa parseado se comparte con los demás LightBot del mismo mapa (ver Mapa); aquí solo se crea
+    // el tablero propio y se guardan la posición y dirección originales para permitir reinicios posteriores
     public LightBot(String[] mundoLineas) {
-        MapParser parser = new MapParser(mundoLineas);
-        this.grid  = parser.getGrid();
-        this.robot = parser.getRobot();
-        int rows = grid.length;
-        int cols = grid[0].length;
-        originalGrid = new char[rows][cols];
-        for (int r = 0; r < rows; r++) {
-            System.arraycopy(grid[r], 0, originalGrid[r], 0, cols);
+        this(Mapa.de(mundoLineas));
+    }
+
+    // LightBot sobre un mapa ya parseado (ver Evaluador)
+    LightBot(Mapa mapa) {
+        this(mapa.tablero(), mapa.fila, mapa.columna, mapa.dir);
+    }
+
+    private LightBot(TableroFueraDeHeap grid) {
+        this(grid, grid.filaRobot, grid.colRobot, grid.dirRobot);
+    }
+
+    private LightBot(TableroDisperso grid) {
+        this(grid, grid.filaRobot, grid.colRobot, grid.dirRobot);
+    }
+
+    private LightBot(Tablero grid, int row, int col, Robot.Direccion dir) {
+        this.grid  = grid;
+        this.robot = new Robot(row, col, dir);
+        originalRow = row;
+        originalCol = col;
+        originalDir = dir;
+    }
+
+    // Crea un LightBot eligiendo dónde guardar el mapa: los que caben en Tablero.MAX_CELDAS_EN_HEAP celdas
+    // van al heap, como con el constructor, y los más grandes fuera del heap como con createOffHeap
+    public static LightBot create(String[] mundoLineas) {
+        return Tablero.cabeEnHeap(mundoLineas) ? new LightBot(mundoLineas) : createOffHeap(mundoLineas);
+    }
+
+    // Crea un LightBot con el mapa en memoria nativa, a un byte por celda; hay que liberarlo con close()
+    // Estos mapas no se comparten entre instancias creadas por separado, pero sí con sus fork() y snapshot()
+    public static LightBot createOffHeap(String[] mundoLineas) {
+        return new LightBot(new TableroFueraDeHeap(mundoLineas));
+    }
+
+    // Crea un LightBot con el mapa en forma dispersa: solo se guardan las celdas distintas de '.' y las encendidas
+    public static LightBot createSparse(String[] mundoLineas) {
+        return new LightBot(TableroDisperso.de(mundoLineas));
+    }
+
+    // Crea un mundo disperso de rows × cols sin pasar por texto, para toros enormes y casi vacíos:
+    // todo es '.' salvo las celdas (cellRows[i], cellCols[i]), que contienen cellTypes[i]
+    // El robot empieza en (robotRow, robotCol) mirando hacia robotDir ('U', 'D', 'L' o 'R')
+    // La memoria depende del número de celdas dadas y de las que se enciendan, no de rows × cols
+    public static LightBot createSparse(int rows, int cols, int robotRow, int robotCol, char robotDir,
+                                        int[] cellRows, int[] cellCols, char[] cellTypes) {
+        Robot.Direccion dir = Robot.direccion(robotDir);
+        if (dir == null) throw new IllegalArgumentException("Invalid robot direction: " + robotDir);
+        return new LightBot(new TableroDisperso(rows, cols, robotRow, robotCol, dir, cellRows, cellCols, cellTypes));
+    }
+
+    // Parsea un mapa de texto ASCII (filas separadas por '\n' o "\r\n") sin crear un String por fila
+    // Las filas se reparten entre los hilos del ForkJoinPool común y, como create, los mapas de más de
+    // Tablero.MAX_CELDAS_EN_HEAP celdas se dejan fuera del heap (hay que liberarlos con close())
+    public static LightBot parse(byte[] map) {
+        LectorMapas.Geometria g = LectorMapas.geometria(map);
+        if (g.celdas() <= Tablero.MAX_CELDAS_EN_HEAP) return new LightBot(LectorMapas.mapa(map, g));
+        return new LightBot(LectorMapas.fueraDeHeap(map, g));
+    }
+
+    // Lee un mapa de texto fila a fila, sin crear un String por fila; no cierra el Reader
+    public static LightBot parse(Reader in) throws IOException {
+        return new LightBot(LectorMapas.leer(in));
+    }
+
+    // Como parse(Reader), leyendo cada byte como un carácter (ISO-8859-1); no cierra el InputStream
+    public static LightBot parse(InputStream in) throws IOException {
+        return new LightBot(LectorMapas.leer(new InputStreamReader(in, StandardCharsets.ISO_8859_1)));
+    }
+
+    // Abre un mundo guardado en el formato binario de FormatoBinario (con save o convert): el fichero se proyecta
+    // en memoria y solo se leen la cabecera y la paleta, sin parsear celdas
+    // Las celdas que se encienden no se escriben en el fichero; como con createOffHeap, hay que liberarlo con close()
+    public static LightBot load(Path file) throws IOException {
+        return new LightBot(FormatoBinario.abrir(file));
+    }
+
+    // Guarda el mundo tal como está ahora (celdas encendidas incluidas) y la pose actual del robot en formato
+    // binario; al abrirlo con load, ese será el estado al que vuelve reset()
+    // Se puede guardar encima del fichero del que se abrió este LightBot
+    public void save(Path file) throws IOException {
+        FormatoBinario.guardar(grid, robot.row, robot.col, robot.dir, file);
+    }
+
+    // Convierte un mapa de texto al formato binario que abre load
+    public static void convert(String[] mundoLineas, Path file) throws IOException {
+        FormatoBinario.convertir(mundoLineas, file);
+    }
+
+    // Libera la memoria nativa del mapa, si la tiene, en cuanto la cierran también los fork() y los LightBot
+    // restaurados desde un snapshot() que la comparten; después el LightBot ya no se puede usar
+    @Override
+    public void close() {
+        grid.cerrar();
+    }
+
+    // Copia de otro LightBot para fork(): comparte el tablero (copy-on-write), el programa compilado y la configuración
+    private LightBot(LightBot otro) {
+        Tablero copia = otro.grid.copia();
+        copia.retener();
+        grid = otro.grid instanceof TableroDiferido ? new TableroDiferido(copia) : copia;
+        robot = new Robot(otro.robot.row, otro.robot.col, otro.robot.dir);
+        originalRow = otro.originalRow;
+        originalCol = otro.originalCol;
+        originalDir = otro.originalDir;
+        compiled = otro.compiled;
+        bloques = otro.bloques;
+        runs = otro.runs;
+        compileThreshold = otro.compileThreshold;
+        generated = otro.generated;
+        maxCallDepth = otro.maxCallDepth;
+    }
+
+    // Estado guardado con snapshot(): el tablero congelado y la pose del robot
+    // Es inmutable, así que se puede restaurar tantas veces como se quiera
+    public static final class Snapshot {
+        private final Tablero grid;
+        private final long pose;
+
+        private Snapshot(Tablero grid, long pose) {
+            this.grid = grid;
+            this.pose = pose;
         }
-        originalRow = robot.row;
-        originalCol = robot.col;
-        originalDir = robot.dir;
+    }
+
+    // Guarda el estado actual del mundo y del robot en O(1); las teselas del mapa se comparten
+    // y solo se copian las que se modifiquen después
+    public Snapshot snapshot() {
+        return new Snapshot(grid.copia(), robot.pose());
+    }
+
+    // Vuelve al estado guardado por snapshot(), de este LightBot o de otro creado con el mismo mapa
+    // Después de restaurar, reset() sigue volviendo al estado inicial del mapa
+    public void restore(Snapshot snapshot) {
+        if (!grid.mismoOriginal(snapshot.grid)) throw new IllegalArgumentException("Snapshot belongs to a different map");
+        Tablero copia = snapshot.grid.copia();
+        copia.retener();
+        grid.cerrar();
+        grid = grid instanceof TableroDiferido ? new TableroDiferido(copia) : copia;
+        robot.setPose(snapshot.pose);
+    }
+
+    // Devuelve en O(1) un LightBot independiente con el mismo estado que este; los dos evolucionan por separado
+    // y cada uno copia solo las teselas del mapa que modifica
+    // El fork se puede entregar a otro hilo, pero hay que crearlo en el hilo que usa este LightBot
+    public LightBot fork() {
+        return new LightBot(this);
     }
 
     // Reinicia el mundo y el robot a su estado inicial guardado en el constructor
     // Útil para volver a ejecutar el mismo programa sin arrastrar efectos previos
+    // No copia el mapa: Tablero pasa de época y las celdas modificadas antes dejan de valer
     public void reset() {
-        int rows = grid.length;
-        int cols = grid[0].length;
-        for (int r = 0; r < rows; r++) {
-            System.arraycopy(originalGrid[r], 0, grid[r], 0, cols);
-        }
+        grid.reset();
         robot.row = originalRow;
         robot.col = originalCol;
         robot.dir = originalDir;
     }
 
-    // Ejecuta un programa completo: limpia definiciones antiguas, parsea funciones y
-    // luego ejecuta las instrucciones principales
+    // Ejecuta un programa completo: parsea funciones, compila las instrucciones principales a opcodes,
+    // enlaza las llamadas y las ejecuta; los errores de compilación saltan antes de tocar el mapa
+    // Los programas compilados se guardan en CacheProgramas, así que repetir un programa (aquí o en otro LightBot)
+    // no lo vuelve a compilar; a partir de compileThreshold ejecuciones seguidas se pasa al bytecode generado
+    // por GeneradorBytecode, que también se comparte si otro LightBot ya lo generó
     public void runProgram(String[] instrucciones) {
-        functionBodies.clear();
-        functionParams.clear();
-        List<String> inst = Arrays.asList(instrucciones);
-        parseFunctions(inst);
-        ejecutarBloque(inst);
+        lanzar(CacheProgramas.obtener(instrucciones, LightBot::compilar));
+    }
+
+    // Programa compilado con compile(): inmutable y seguro entre hilos, se puede ejecutar a la vez en cualquier
+    // número de LightBot sin sincronización
+    // Cada LightBot es el contexto de ejecución de un hilo (sus celdas encendidas, el robot y las pilas del
+    // intérprete) y comparte con los demás el mapa parseado (ver Mapa), así que crear uno por hilo es barato
+    public static final class CompiledProgram {
+        private final CacheProgramas.Compilado compilado;
+
+        private CompiledProgram(CacheProgramas.Compilado compilado) {
+            this.compilado = compilado;
+        }
+
+        // Instrucciones que quitó el optimizador (bloque principal y funciones)
+        public int getRemovedInstructionCount() {
+            return compilado.eliminadas;
+        }
+    }
+
+    // Compila un programa una sola vez para ejecutarlo luego con runProgram(CompiledProgram), en este hilo o en otros
+    // Los errores de compilación saltan aquí; el resultado también queda en la caché de programas
+    public static CompiledProgram compile(String[] instrucciones) {
+        return new CompiledProgram(CacheProgramas.obtener(instrucciones, LightBot::compilar));
+    }
+
+    // Ejecuta un programa ya compilado, igual que runProgram(String[]) pero sin buscarlo en la caché
+    public void runProgram(CompiledProgram program) {
+        lanzar(program.compilado);
+    }
+
+    // Compila y ejecuta un programa sin pasar por CacheProgramas (ver Evaluador): en un lote casi todos los
+    // programas se ejecutan una sola vez y guardarlos expulsaría de la caché a los que sí se repiten
+    void ejecutarSinCache(String[] instrucciones) {
+        lanzar(compilar(Arrays.asList(instrucciones)));
+    }
+
+    private void lanzar(CacheProgramas.Compilado c) {
+        if (c != compiled) {
+            compiled = c;
+            bloques = c.bloques;
+            runs = 0;
+        }
+        generated = ++runs >= compileThreshold ? c.generar() : c.generado();
+        if (generated != null) ejecutarGenerado();
+        else ejecutar();
+    }
+
+    // Evalúa cada programa por separado sobre el mapa de partida, en paralelo, y devuelve los resultados en el
+    // mismo orden que programs; el mapa se parsea una sola vez y cada hilo reutiliza su propio LightBot
+    // Los programas se reparten entre el hilo que llama y los del ForkJoinPool común según van quedando libres
+    // Un programa que falla no detiene a los demás: su excepción queda en Result.getError()
+    public static List<Result> evaluateAll(String[] map, List<String[]> programs) {
+        if (programs.isEmpty()) return List.of();
+        return Evaluador.evaluar(map, programs);
+    }
+
+    // Evalúa un mismo programa sobre cada mapa, en paralelo, y devuelve los resultados en el mismo orden que maps
+    // El recorrido del robot no depende de las celdas: el programa se ejecuta una sola vez por cada combinación
+    // de tamaño de mapa y dirección inicial del robot, y a cada mapa solo se le aplican las celdas encendidas
+    // (ver Evaluador); los errores de compilación saltan aquí, antes de evaluar nada
+    public static List<Result> evaluateOnMaps(String[] program, List<String[]> maps) {
+        if (maps.isEmpty()) return List.of();
+        return Evaluador.evaluarEnMapas(program, maps);
+    }
+
+    // Estado final de un programa evaluado con evaluateAll o evaluateOnMaps
+    // Salvo en mapas enormes, solo guarda las celdas que cambiaron; getMap() las aplica sobre las líneas del mapa
+    // inicial, que no se copian
+    public static final class Result {
+        private final String[] inicial;
+        private final boolean conRobot; // inicial aún tiene la marca del robot, que getMap() muestra como '.'
+        private final long[] cambios;
+        private final String[] mapa;
+        private final int[] position;
+        private final int remainingTargets;
+        private final int litCount;
+        private final RuntimeException error;
+
+        Result(String[] inicial, boolean conRobot, long[] cambios, String[] mapa, int[] position, int remainingTargets,
+               int litCount, RuntimeException error) {
+            this.inicial = inicial;
+            this.conRobot = conRobot;
+            this.cambios = cambios;
+            this.mapa = mapa;
+            this.position = position;
+            this.remainingTargets = remainingTargets;
+            this.litCount = litCount;
+            this.error = error;
+        }
+
+        // El mapa final, como LightBot.getMap(); solo se crean de nuevo las filas que cambiaron
+        public String[] getMap() {
+            if (mapa != null) return mapa.clone();
+            String[] out = inicial.clone();
+            char[][] tocadas = new char[out.length][];
+            if (conRobot) {
+                for (int r = 0; r < out.length; r++) {
+                    for (int c = 0; c < out[r].length(); c++) {
+                        if (Robot.direccion(out[r].charAt(c)) == null) continue;
+                        if (tocadas[r] == null) tocadas[r] = out[r].toCharArray();
+                        tocadas[r][c] = '.';
+                    }
+                }
+            }
+            for (long c : cambios) {
+                int r = changeRow(c);
+                if (tocadas[r] == null) tocadas[r] = out[r].toCharArray();
+                tocadas[r][changeCol(c)] = changeChar(c);
+            }
+            for (int r = 0; r < out.length; r++) if (tocadas[r] != null) out[r] = new String(tocadas[r]);
+            return out;
+        }
+
+        public int[] getRobotPosition() {
+            return position.clone();
+        }
+
+        public int remainingTargets() {
+            return remainingTargets;
+        }
+
+        public boolean isSolved() {
+            return remainingTargets == 0;
+        }
+
+        public int litCount() {
+            return litCount;
+        }
+
+        // Excepción con la que falló el programa (por ejemplo al compilarlo), o null si terminó bien
+        // Si falló, el resto de datos describen el mundo en el momento del fallo
+        public RuntimeException getError() {
+            return error;
+        }
+    }
+
+    // Indica si las celdas de un mapa de este tamaño caben en el empaquetado de getChangesSinceReset
+    static boolean cambiosEmpaquetables(int filas, int columnas) {
+        return filas <= 1 << 24 && columnas <= 1 << 24;
+    }
+
+    // Pose del robot codificada como en Robot.pose()
+    long pose() {
+        return robot.pose();
+    }
+
+    // Tamaño del mapa y dirección inicial del robot, lo único de lo que depende la huella de un programa
+    long claveHuella() {
+        return ((long) grid.filas << 32) | ((long) grid.columnas << 2) | Movimiento.indice(originalDir);
+    }
+
+    // Mundo disperso vacío del mismo tamaño, con el robot en (0, 0) y la misma dirección inicial que este
+    LightBot mundoVacio() {
+        return new LightBot(new TableroDisperso(grid.filas, grid.columnas, 0, 0, originalDir, new int[0], new int[0],
+                new char[0]));
+    }
+
+    // Aplica la huella de un programa calculada en mundoVacio(): enciende sus celdas y deja el robot en su pose
+    // final, todo desplazado a la posición inicial de este robot; este LightBot tiene que estar recién reiniciado
+    void aplicarHuella(long[] celdas, long poseFinal) {
+        for (long c : celdas) {
+            grid.luz((changeRow(c) + originalRow) % grid.filas, (changeCol(c) + originalCol) % grid.columnas);
+        }
+        robot.setPose(poseFinal);
+        robot.row = (robot.row + originalRow) % grid.filas;
+        robot.col = (robot.col + originalCol) % grid.columnas;
+    }
+
+    // Compila, optimiza y enlaza un programa completo
+    private static CacheProgramas.Compilado compilar(List<String> inst) {
+        Map<String, Program> functions = parseFunctions(inst);
+        Program main = Optimizador.optimizar(Program.compilar(inst));
+        int eliminadas = main.eliminadas;
+        for (Map.Entry<String, Program> f : functions.entrySet()) {
+            f.setValue(Optimizador.optimizar(f.getValue()));
+            eliminadas += f.getValue().eliminadas;
+        }
+        main = Especializador.especializar(main, functions);
+        Program[] bloques = Program.enlazar(main, functions);
+        Program.marcarBuclesDeMovimiento(bloques);
+        return new CacheProgramas.Compilado(bloques, eliminadas);
+    }
+
+    // Devuelve cuántas instrucciones quitó el optimizador del último programa (bloque principal y funciones)
+    public int getRemovedInstructionCount() {
+        return compiled == null ? 0 : compiled.eliminadas;
+    }
+
+    // Fija los límites de la caché de programas compilados, compartida por todo el proceso:
+    // número máximo de programas y peso máximo (enteros de código sumando todos sus bloques)
+    // Al superarlos se expulsan los menos usados; con 0 entradas la caché queda desactivada
+    public static void setProgramCacheLimits(int maxEntries, long maxWeight) {
+        CacheProgramas.limitar(maxEntries, maxWeight);
+    }
+
+    public static int getProgramCacheMaxEntries() {
+        return CacheProgramas.maxEntradas();
+    }
+
+    public static long getProgramCacheMaxWeight() {
+        return CacheProgramas.maxPeso();
+    }
+
+    // Indica si un programa ya está compilado en la caché; no cuenta como acierto ni fallo
+    public static boolean isProgramCached(String[] program) {
+        return CacheProgramas.contiene(program);
+    }
+
+    // Contadores de la caché de programas compilados, para dimensionarla
+    public static long getProgramCacheHits() {
+        return CacheProgramas.aciertos();
+    }
+
+    public static long getProgramCacheMisses() {
+        return CacheProgramas.fallos();
+    }
+
+    public static long getProgramCacheEvictions() {
+        return CacheProgramas.expulsiones();
+    }
+
+    public static int getProgramCacheSize() {
+        return CacheProgramas.numEntradas();
+    }
+
+    // Modo huella: durante la ejecución LIGHT solo apunta la celda en un conjunto sin repetidos y el mapa no se
+    // modifica hasta que algo lo consulta (getMap, remainingTargets, getChangesSinceReset, snapshot...); un ciclo
+    // de runProgram, getRobotPosition y reset no escribe nunca en el mapa
+    // Los resultados son los mismos que sin el modo; al desactivarlo se aplican las celdas pendientes
+    public void setFootprintMode(boolean enabled) {
+        if (enabled == grid instanceof TableroDiferido) return;
+        grid = enabled ? new TableroDiferido(grid) : ((TableroDiferido) grid).aplicar();
+    }
+
+    // Fija cuántas ejecuciones seguidas del mismo programa hacen falta para generar su bytecode
+    public void setCompileThreshold(int compileThreshold) {
+        if (compileThreshold < 1) throw new IllegalArgumentException("Invalid compile threshold: " + compileThreshold);
+        this.compileThreshold = compileThreshold;
+    }
+
+    private void ejecutarGenerado() {
+        try {
+            robot.setPose((long) generated.invokeExact(grid, robot.pose()));
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
     }
 
     // Parsea todas las instrucciones para detectar bloques FUNCTION/ENDFUNCTION
-    // Guarda nombre, parámetros y cuerpo en los mapas correspondientes
-    private void parseFunctions(List<String> inst) {
+    // Compila cada cuerpo una sola vez, con sus parámetros resueltos a posiciones del marco
+    private static Map<String, Program> parseFunctions(List<String> inst) {
+        Map<String, Program> functions = new HashMap<>();
         int i = 0;
         while (i < inst.size()) {
             String comando = inst.get(i);
@@ -82,84 +493,249 @@ public class LightBot {
                     if (level > 0) body.add(s);
                     j++;
                 }
-                functionBodies.put(name, body);
-                functionParams.put(name, params);
+                functions.put(name, Program.compilar(body, params));
                 i = j;
             } else i++;
         }
+        return functions;
     }
 
-    // Recorre un bloque de instrucciones y ejecuta cada comando
-    // Soporta giros, movimientos, iluminación, repeticiones y llamadas a funciones
-    private void ejecutarBloque(List<String> inst) {
-        int i = 0;
-        while (i < inst.size()) {
-            String comando = inst.get(i);
-            if (comando.equals("LEFT")) {
-                robot.girarIzquierda();
-                i++;
-            } else if (comando.equals("RIGHT")) {
-                robot.girarDerecha();
-                i++;
-            } else if (comando.equals("FORWARD")) {
-                robot.caminar(grid);
-                i++;
-            } else if (comando.equals("LIGHT")) {
-                robot.luz(grid);
-                i++;
-            } else if (comando.startsWith("REPEAT")) {
-                String[] parts = comando.split(" ");
-                int veces = Integer.parseInt(parts[1]);
-                int level = 1;
-                int start = i + 1;
-                int j = start;
-                while (j < inst.size() && level > 0) {
-                    String s = inst.get(j);
-                    if (s.startsWith("REPEAT")) level++;
-                    else if (s.equals("ENDREPEAT")) level--;
-                    j++;
+    // Bucle de despacho sobre el flujo de opcodes de un programa compilado, sin recursión en Java:
+    // los CALL guardan (id del bloque, pc de retorno, base del marco, cima de bucles) en la pila de llamadas
+    // y los REPEAT en curso guardan (vueltas pendientes, vueltas hechas, pose de entrada) en la pila de bucles
+    // Los argumentos del bloque actual viven en args[base .. base + numParams)
+    // El movimiento no depende del mapa y LIGHT es idempotente: si al terminar una vuelta el robot vuelve
+    // a la pose con la que entró al bucle, las vueltas siguientes repiten exactamente las mismas celdas y
+    // solo importa el resto de dividir las vueltas pendientes entre el periodo
+    private void ejecutar() {
+        Program[] bloques = this.bloques;
+        int id = 0;
+        Program p = bloques[0];
+        int[] code = p.code;
+        int pc = 0;
+        int base = 0;
+        int csp = 0;
+        int lsp = 0;
+        while (true) {
+            switch (code[pc]) {
+                case Program.OP_LEFT:
+                    robot.girarIzquierda();
+                    pc++;
+                    break;
+                case Program.OP_RIGHT:
+                    robot.girarDerecha();
+                    pc++;
+                    break;
+                case Program.OP_FORWARD:
+                    robot.caminar(grid);
+                    pc++;
+                    break;
+                case Program.OP_TURN:
+                    robot.girar(code[pc + 1]);
+                    pc += 2;
+                    break;
+                case Program.OP_MOVE:
+                    robot.caminar(grid, code[pc + 1]);
+                    pc += 2;
+                    break;
+                case Program.OP_LIGHT:
+                    robot.luz(grid);
+                    pc++;
+                    break;
+                case Program.OP_REPEAT:
+                case Program.OP_REPEAT_P: {
+                    long n = code[pc] == Program.OP_REPEAT ? p.constantes[code[pc + 1]] : args[base + code[pc + 1]];
+                    if (n > 0) {
+                        if (lsp == veces.length) crecerBucles();
+                        veces[lsp] = n;
+                        hechas[lsp] = 0;
+                        entrada[lsp++] = robot.pose();
+                        pc += 3;
+                    } else pc = code[pc + 2];
+                    break;
                 }
-                List<String> sub = inst.subList(start, j - 1);
-                for (int k = 0; k < veces; k++) ejecutarBloque(sub);
-                i = j;
-            } else if (comando.equals("ENDREPEAT")) {
-                return;
-            } else if (comando.startsWith("FUNCTION")) {
-                int level = 1;
-                int j = i + 1;
-                while (j < inst.size() && level > 0) {
-                    if (inst.get(j).startsWith("FUNCTION")) level++;
-                    else if (inst.get(j).equals("ENDFUNCTION")) level--;
-                    j++;
+                case Program.OP_REPEAT_M:
+                case Program.OP_REPEAT_MP: {
+                    // El cuerpo es una transformación rígida fija: se calcula una vez y se eleva a n
+                    long n = code[pc] == Program.OP_REPEAT_M ? p.constantes[code[pc + 1]] : args[base + code[pc + 1]];
+                    if (n > 0) resumir(bloques, id, pc + 3, base, csp).potencia(n).aplicar(robot);
+                    pc = code[pc + 2];
+                    break;
                 }
-                i = j;
-            } else if (comando.startsWith("CALL")) {
-                String call = comando.substring(4).trim();
-                String name;
-                List<String> args = new ArrayList<>();
-                int pstart = call.indexOf('(');
-                if (pstart >= 0) {
-                    name = call.substring(0, pstart).trim();
-                    int pend = call.lastIndexOf(')');
-                    String as = call.substring(pstart + 1, pend).trim();
-                    if (!as.isEmpty()) for (String a : as.split(",")) args.add(a.trim());
-                } else name = call;
-                List<String> body = functionBodies.get(name);
-                List<String> params = functionParams.get(name);
-                if (body == null) throw new IllegalArgumentException("Function not defined: " + name);
-                List<String> sub = new ArrayList<>();
-                for (String line : body) {
-                    String newline = line;
-                    if (params != null) {
-                        for (int idx = 0; idx < params.size(); idx++) {
-                            newline = newline.replaceAll("\\b" + Pattern.quote(params.get(idx)) + "\\b", args.get(idx));
-                        }
+                case Program.OP_ENDREPEAT: {
+                    long quedan = --veces[lsp - 1];
+                    long periodo = ++hechas[lsp - 1];
+                    if (quedan >= periodo && robot.pose() == entrada[lsp - 1]) {
+                        quedan %= periodo;
+                        veces[lsp - 1] = quedan;
                     }
-                    sub.add(newline);
+                    if (quedan > 0) pc = code[pc + 1] + 3;
+                    else {
+                        lsp--;
+                        pc += 2;
+                    }
+                    break;
                 }
-                ejecutarBloque(sub);
-                i++;
-            } else i++;
+                case Program.OP_CALL: {
+                    if (csp == maxCallDepth) throw new IllegalStateException("Call depth limit exceeded: " + maxCallDepth);
+                    if (csp == retBloque.length) crecerLlamadas();
+                    retBloque[csp] = id;
+                    retPc[csp] = pc + 2;
+                    retBase[csp] = base;
+                    retBucles[csp++] = lsp;
+                    int cima = base + p.numParams;
+                    Program.Llamada ll = p.llamadas[code[pc + 1]];
+                    id = ll.destino;
+                    p = bloques[id];
+                    prepararLlamada(ll, p, base, cima);
+                    code = p.code;
+                    base = cima;
+                    pc = 0;
+                    break;
+                }
+                default:
+                    if (csp == 0) return;
+                    id = retBloque[--csp];
+                    p = bloques[id];
+                    code = p.code;
+                    pc = retPc[csp];
+                    base = retBase[csp];
+                    lsp = retBucles[csp];
+            }
+        }
+    }
+
+    // Calcula la transformación rígida del cuerpo de un REPEAT de solo movimiento que empieza en pc
+    // Usa la misma técnica de pila explícita: un REPEAT anidado apila el acumulado actual y sus vueltas,
+    // y al llegar a su ENDREPEAT se compone el acumulado guardado con el cuerpo elevado a n
+    // Sus CALL se apilan en la pila de llamadas por encima de fondo, la cima actual del intérprete
+    // Desde finalPose se resume también un bloque entero (termina en su HALT) y LIGHT se salta
+    private Movimiento resumir(Program[] bloques, int id, int pc, int base, int fondo) {
+        Program p = bloques[id];
+        int[] code = p.code;
+        Movimiento acc = new Movimiento(grid.filas, grid.columnas);
+        int csp = fondo;
+        int msp = 0;
+        while (true) {
+            switch (code[pc]) {
+                case Program.OP_LEFT:
+                    acc.girar(3);
+                    pc++;
+                    break;
+                case Program.OP_RIGHT:
+                    acc.girar(1);
+                    pc++;
+                    break;
+                case Program.OP_FORWARD:
+                    acc.avanzar(1);
+                    pc++;
+                    break;
+                case Program.OP_TURN:
+                    acc.girar(code[pc + 1]);
+                    pc += 2;
+                    break;
+                case Program.OP_MOVE:
+                    acc.avanzar(code[pc + 1]);
+                    pc += 2;
+                    break;
+                case Program.OP_LIGHT:
+                    pc++;
+                    break;
+                case Program.OP_REPEAT:
+                case Program.OP_REPEAT_M:
+                case Program.OP_REPEAT_P:
+                case Program.OP_REPEAT_MP: {
+                    boolean literal = code[pc] == Program.OP_REPEAT || code[pc] == Program.OP_REPEAT_M;
+                    long n = literal ? p.constantes[code[pc + 1]] : args[base + code[pc + 1]];
+                    if (n > 0) {
+                        if (msp == acumulados.length) {
+                            acumulados = Arrays.copyOf(acumulados, msp * 2);
+                            potencias = Arrays.copyOf(potencias, msp * 2);
+                        }
+                        acumulados[msp] = acc;
+                        potencias[msp++] = n;
+                        acc = new Movimiento(acc.filas, acc.columnas);
+                        pc += 3;
+                    } else pc = code[pc + 2];
+                    break;
+                }
+                case Program.OP_ENDREPEAT: {
+                    if (msp == 0) return acc;
+                    Movimiento cuerpo = acc;
+                    acc = acumulados[--msp];
+                    acumulados[msp] = null;
+                    acc.componer(cuerpo.potencia(potencias[msp]));
+                    pc += 2;
+                    break;
+                }
+                case Program.OP_CALL: {
+                    if (csp == maxCallDepth) throw new IllegalStateException("Call depth limit exceeded: " + maxCallDepth);
+                    if (csp == retBloque.length) crecerLlamadas();
+                    retBloque[csp] = id;
+                    retPc[csp] = pc + 2;
+                    retBase[csp++] = base;
+                    int cima = base + p.numParams;
+                    Program.Llamada ll = p.llamadas[code[pc + 1]];
+                    id = ll.destino;
+                    p = bloques[id];
+                    prepararLlamada(ll, p, base, cima);
+                    code = p.code;
+                    base = cima;
+                    pc = 0;
+                    break;
+                }
+                default:
+                    if (csp == fondo) return acc;
+                    id = retBloque[--csp];
+                    p = bloques[id];
+                    code = p.code;
+                    pc = retPc[csp];
+                    base = retBase[csp];
+            }
+        }
+    }
+
+    // Pose en la que acabaría el robot si ejecutara el programa desde su pose actual, como { columna, fila }
+    // (igual que getRobotPosition); no toca el mapa ni mueve al robot
+    // Sin LIGHT, cada bloque es una transformación rígida del toro: el programa entero se resume componiendo
+    // las de sus bloques y elevando a n las de los REPEAT, así que el coste no depende del número de vueltas
+    public int[] finalPose(String[] instrucciones) {
+        return finalPose(compile(instrucciones));
+    }
+
+    public int[] finalPose(CompiledProgram program) {
+        Robot r = new Robot(robot.row, robot.col, robot.dir);
+        resumir(program.compilado.bloques, 0, 0, 0, 0).aplicar(r);
+        return new int[]{ r.col, r.row };
+    }
+
+    // Fija la profundidad máxima de llamadas anidadas; al superarla se lanza IllegalStateException
+    // La pila de control es propia del intérprete, así que el límite no depende de la pila del hilo
+    public void setMaxCallDepth(int maxCallDepth) {
+        if (maxCallDepth < 0) throw new IllegalArgumentException("Invalid call depth limit: " + maxCallDepth);
+        this.maxCallDepth = maxCallDepth;
+    }
+
+    private void crecerBucles() {
+        int n = veces.length * 2;
+        veces = Arrays.copyOf(veces, n);
+        hechas = Arrays.copyOf(hechas, n);
+        entrada = Arrays.copyOf(entrada, n);
+    }
+
+    private void crecerLlamadas() {
+        int n = (int) Math.min((long) retBloque.length * 2, Math.max(maxCallDepth, 1));
+        retBloque = Arrays.copyOf(retBloque, n);
+        retPc = Arrays.copyOf(retPc, n);
+        retBase = Arrays.copyOf(retBase, n);
+        retBucles = Arrays.copyOf(retBucles, n);
+    }
+
+    // Prepara un CALL ya enlazado a f: copia los argumentos en un marco nuevo en la cima de la pila
+    private void prepararLlamada(Program.Llamada ll, Program f, int base, int cima) {
+        if (cima + f.numParams > args.length) args = Arrays.copyOf(args, Math.max(args.length * 2, cima + f.numParams));
+        for (int k = 0; k < f.numParams; k++) {
+            args[cima + k] = ll.slots[k] >= 0 ? args[base + ll.slots[k]] : ll.valores[k];
         }
     }
 
@@ -169,105 +745,97 @@ public class LightBot {
         return new int[]{ robot.col, robot.row };
     }
 
-    // Devuelve el mapa actual como array de cadenas, mostrando el estado de las celdas
-    public String[] getMap() {
-        String[] out = new String[grid.length];
-        for (int r = 0; r < grid.length; r++) out[r] = new String(grid[r]);
-        return out;
+    // Objetivos ('O') que quedan por encender en el mapa
+    public int remainingTargets() {
+        return grid.objetivosPendientes();
     }
-}
 
-// Representa al robot dentro del mundo, con posición (fila, columna) y dirección actual
-// Ofrece métodos para girar, mover y cambiar la iluminación de las celdas
-class Robot {
-    public int row;
-    public int col;
-    public Direccion dir;
-
-    enum Direccion { UP, DOWN, LEFT, RIGHT }
-
-    // Constructor: fija posición inicial y dirección de enfrentamiento
-    Robot(int row, int col, Direccion dir) {
-        this.row = row;
-        this.col = col;
-        this.dir = dir;
-    }
-
-    // Gira el robot 90 grados hacia la izquierda según su dirección actual
-    public void girarIzquierda() {
-        switch (dir) {
-            case UP:    dir = Direccion.LEFT;  break;
-            case LEFT:  dir = Direccion.DOWN;  break;
-            case DOWN:  dir = Direccion.RIGHT; break;
-            default:    dir = Direccion.UP;    break;
-        }
+    // Indica si ya están encendidos todos los objetivos
+    public boolean isSolved() {
+        return grid.objetivosPendientes() == 0;
     }
 
-    // Gira el robot 90 grados hacia la derecha según su dirección actual
-    public void girarDerecha() {
-        switch (dir) {
-            case UP:    dir = Direccion.RIGHT; break;
-            case RIGHT: dir = Direccion.DOWN;  break;
-            case DOWN:  dir = Direccion.LEFT;  break;
-            default:    dir = Direccion.UP;    break;
-        }
+    // Celdas encendidas ('X' o 'x'), incluidas las que ya lo estaban en el mapa original
+    public int litCount() {
+        return grid.encendidas();
     }
 
-    // Mueve al robot una casilla en la dirección actual; los bordes se conectan (wrap-around)
-    public void caminar(char[][] grid) {
-        int dr = 0, dc = 0;
-        switch (dir) {
-            case UP:    dr = -1; break;
-            case DOWN:  dr = +1; break;
-            case LEFT:  dc = -1; break;
-            case RIGHT: dc = +1; break;
-        }
-        int nr = (row + dr + grid.length) % grid.length;
-        int nc = (col + dc + grid[0].length) % grid[0].length;
-        row = nr;
-        col = nc;
+    // Devuelve solo las celdas que han cambiado desde el último reset, en el orden en que cambiaron,
+    // empaquetadas en un long cada una (ver changeRow, changeCol y changeChar)
+    // Cuesta O(celdas modificadas) en vez de O(filas × columnas) como getMap
+    public long[] getChangesSinceReset() {
+        long[] out = new long[grid.numCambios()];
+        grid.cambios(out, 0);
+        return out;
     }
 
-    // Cambia el estado de la celda actual: si está apagada la enciende y si está encendida la apaga
-    public void luz(char[][] grid) {
-        char c = grid[row][col];
-        if (c == 'O')      grid[row][col] = 'X';
-        else if (c == '.') grid[row][col] = 'x';
+    // Igual que getChangesSinceReset() pero escribe en un buffer del llamante, que se puede reutilizar
+    // Devuelve el número total de cambios; si es mayor que buffer.length solo se escriben los primeros
+    public int getChangesSinceReset(long[] buffer) {
+        grid.cambios(buffer, 0);
+        return grid.numCambios();
     }
 
-    public void repeat() {
+    // Fila, columna y nuevo contenido de un cambio devuelto por getChangesSinceReset
+    public static int changeRow(long change) {
+        return (int) (change >>> 40);
+    }
 
+    public static int changeCol(long change) {
+        return (int) (change >>> 16) & 0xFFFFFF;
     }
 
-    public void function() {
+    public static char changeChar(long change) {
+        return (char) change;
+    }
 
+    // Devuelve el mapa actual como array de cadenas, mostrando el estado de las celdas
+    public String[] getMap() {
+        return grid.getMap();
     }
 
-}
+    // Devuelve solo la ventana de filas [rowFrom, rowTo) y columnas [colFrom, colTo) del mapa actual
+    public String[] getMap(int rowFrom, int rowTo, int colFrom, int colTo) {
+        Objects.checkFromToIndex(rowFrom, rowTo, grid.filas);
+        Objects.checkFromToIndex(colFrom, colTo, grid.columnas);
+        return grid.getMap(rowFrom, rowTo, colFrom, colTo);
+    }
 
-class MapParser {
-    private char[][] grid;
-    private Robot robot;
+    // Tramo de fila reutilizado por writeMap, para no crear nada por fila ni por llamada
+    private char[] tramo() {
+        if (tramo == null) tramo = new char[Math.min(grid.columnas, TRAMO)];
+        return tramo;
+    }
 
-    public MapParser(String[] rows) {
-        int rcount = rows.length;
-        int ccount = rows[0].length();
-        grid = new char[rcount][ccount];
-        for (int r = 0; r < rcount; r++) {
-            for (int c = 0; c < ccount; c++) {
-                char ch = rows[r].charAt(c);
-                switch (ch) {
-                    case 'U': robot = new Robot(r, c, Robot.Direccion.UP);    grid[r][c] = '.'; break;
-                    case 'D': robot = new Robot(r, c, Robot.Direccion.DOWN);  grid[r][c] = '.'; break;
-                    case 'R': robot = new Robot(r, c, Robot.Direccion.RIGHT); grid[r][c] = '.'; break;
-                    case 'L': robot = new Robot(r, c, Robot.Direccion.LEFT);  grid[r][c] = '.'; break;
-                    default:  grid[r][c] = ch;
-                }
+    // Escribe las mismas filas que getMap(), cada una seguida de '\n', sin crear Strings intermedias:
+    // las celdas pasan por un buffer de este LightBot que se reutiliza entre llamadas
+    // Writer y StringBuilder reciben tramos enteros; cualquier otro Appendable, carácter a carácter
+    public void writeMap(Appendable out) throws IOException {
+        char[] buf = tramo();
+        for (int r = 0; r < grid.filas; r++) {
+            for (int c = 0; c < grid.columnas; c += buf.length) {
+                int n = Math.min(buf.length, grid.columnas - c);
+                grid.fila(r, c, c + n, buf, 0);
+                if (out instanceof Writer) ((Writer) out).write(buf, 0, n);
+                else if (out instanceof StringBuilder) ((StringBuilder) out).append(buf, 0, n);
+                else for (int i = 0; i < n; i++) out.append(buf[i]);
             }
+            out.append('\n');
         }
-        if (robot == null) throw new IllegalArgumentException("No se encontro posicion de inicio del robot");
     }
 
-    public char[][] getGrid() { return grid; }
-    public Robot getRobot()   { return robot; }
+    // Como writeMap(Appendable) pero en ASCII, un byte por celda, desde la posición actual de out
+    // Si no cabe el mapa entero lanza BufferOverflowException sin escribir nada
+    public void writeMap(ByteBuffer out) {
+        if ((long) grid.filas * (grid.columnas + 1L) > out.remaining()) throw new BufferOverflowException();
+        char[] buf = tramo();
+        for (int r = 0; r < grid.filas; r++) {
+            for (int c = 0; c < grid.columnas; c += buf.length) {
+                int n = Math.min(buf.length, grid.columnas - c);
+                grid.fila(r, c, c + n, buf, 0);
+                for (int i = 0; i < n; i++) out.put((byte) buf[i]);
+            }
+            out.put((byte) '\n');
+        }
+    }
 }
@@ -1,4 +1,21 @@
 import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import static org.junit.Assert.*;
 
 public class LightBotTest {
@@ -740,4 +757,996 @@ public class LightBotTest {
         }, lb.getMap());
     }
 
-}
\ No newline at end of file
+    @Test
+    public void test13() {
+        LightBot lb = new LightBot(new String[]{
+                ".....O..",
+                "........",
+                "........",
+                "..R..O.."
+        });
+
+        lb.reset();
+        lb.runProgram(new String[]{
+                "REPEAT 1000000003", "FORWARD", "ENDREPEAT",
+                "LIGHT",
+        });
+
+        assertArrayEquals(new int[]{5,3}, lb.getRobotPosition());
+        assertArrayEquals(new String[]{
+                ".....O..",
+                "........",
+                "........",
+                ".....X.."
+        }, lb.getMap());
+
+        lb.reset();
+        lb.runProgram(new String[]{
+                "FUNCTION FW(N)",
+                    "REPEAT N", "FORWARD", "ENDREPEAT",
+                "ENDFUNCTION",
+                "CALL FW(4000000003)",
+                "REPEAT 999999999", "LEFT", "CALL FW(7)", "RIGHT", "RIGHT", "ENDREPEAT",
+                "LIGHT",
+        });
+
+        assertArrayEquals(new int[]{4,3}, lb.getRobotPosition());
+        assertArrayEquals(new String[]{
+                ".....O..",
+                "........",
+                "........",
+                "....xO.."
+        }, lb.getMap());
+    }
+
+    @Test
+    public void test14() {
+        LightBot lb = new LightBot(new String[]{
+                "..R..O..",
+                ".....O..",
+                ".....O..",
+                ".....O.."
+        });
+
+        lb.reset();
+        lb.runProgram(new String[]{
+                "FORWARD",
+                "FORWARD",
+                "FORWARD",
+                "RIGHT",
+                "REPEAT 1000000001", "LIGHT", "FORWARD", "ENDREPEAT",
+        });
+
+        assertArrayEquals(new int[]{5,1}, lb.getRobotPosition());
+        assertArrayEquals(new String[]{
+                ".....X..",
+                ".....X..",
+                ".....X..",
+                ".....X.."
+        }, lb.getMap());
+
+        lb.reset();
+        lb.runProgram(new String[]{
+                "FUNCTION STEP(N)",
+                    "REPEAT N", "FORWARD", "ENDREPEAT", "LIGHT",
+                "ENDFUNCTION",
+                "REPEAT 999999999", "CALL STEP(3)", "LEFT", "CALL STEP(5)", "ENDREPEAT",
+        });
+
+        assertArrayEquals(new int[]{5,1}, lb.getRobotPosition());
+        assertArrayEquals(new String[]{
+                "x.x..X..",
+                ".....X..",
+                ".....O..",
+                ".....X.."
+        }, lb.getMap());
+    }
+
+    @Test
+    public void test15() {
+        LightBot lb = new LightBot(new String[]{
+                "R...........",
+                "............",
+                "............",
+        });
+
+        int n = 20000;
+        List<String> program = new ArrayList<>();
+        for (int i = 0; i < n - 1; i++) {
+            program.add("FUNCTION F" + i);
+            program.add("FORWARD");
+            program.add("CALL F" + (i + 1));
+            program.add("ENDFUNCTION");
+        }
+        program.add("FUNCTION F" + (n - 1));
+        program.add("LIGHT");
+        program.add("ENDFUNCTION");
+        program.add("CALL F0");
+
+        lb.reset();
+        lb.runProgram(program.toArray(new String[0]));
+
+        assertArrayEquals(new int[]{7,0}, lb.getRobotPosition());
+        assertArrayEquals(new String[]{
+                ".......x....",
+                "............",
+                "............",
+        }, lb.getMap());
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void test16() {
+        LightBot lb = new LightBot(new String[]{
+                "R...",
+        });
+
+        lb.setMaxCallDepth(1000);
+        lb.runProgram(new String[]{
+                "FUNCTION LOOP",
+                    "FORWARD", "CALL LOOP",
+                "ENDFUNCTION",
+                "CALL LOOP",
+        });
+    }
+
+    @Test
+    public void test17() {
+        LightBot lb = new LightBot(new String[]{
+                "............",
+                "............",
+                "............",
+                "............",
+                "............",
+                "............",
+                "............",
+                "U...........",
+                "............",
+        });
+        lb.setCompileThreshold(2);
+
+        for (int run = 0; run < 3; run++) {
+            lb.reset();
+            lb.runProgram(new String[]{
+                    "FUNCTION LINE(N)",
+                        "REPEAT N", "LIGHT", "FORWARD", "ENDREPEAT",
+                    "ENDFUNCTION",
+                    "FUNCTION SQUARE(N)",
+                        "REPEAT 4", "CALL LINE(N)", "RIGHT", "ENDREPEAT",
+                    "ENDFUNCTION",
+
+                    "CALL SQUARE(5)",
+                    "REPEAT 1000000003", "FORWARD", "ENDREPEAT",
+            });
+
+            assertArrayEquals(new int[]{0,3}, lb.getRobotPosition());
+            assertArrayEquals(new String[]{
+                    "............",
+                    "............",
+                    "xxxxxx......",
+                    "x....x......",
+                    "x....x......",
+                    "x....x......",
+                    "x....x......",
+                    "xxxxxx......",
+                    "............",
+            }, lb.getMap());
+        }
+    }
+
+    @Test
+    public void test18() {
+        LightBot lb = new LightBot(new String[]{
+                "..U..O..",
+                "........",
+                "........",
+                ".....O.."
+        });
+
+        lb.reset();
+        lb.runProgram(new String[]{
+                "LEFT", "LEFT", "LEFT",
+                "FORWARD", "FORWARD", "FORWARD",
+                "LIGHT", "LIGHT",
+                "REPEAT 5", "LIGHT", "ENDREPEAT",
+                "LEFT", "RIGHT",
+        });
+
+        assertEquals(10, lb.getRemovedInstructionCount());
+        assertArrayEquals(new int[]{5,0}, lb.getRobotPosition());
+        assertArrayEquals(new String[]{
+                ".....X..",
+                "........",
+                "........",
+                ".....O.."
+        }, lb.getMap());
+    }
+
+    @Test
+    public void test19() {
+        LightBot lb = new LightBot(new String[]{
+                "U...",
+                "....",
+                "..O."
+        });
+
+        lb.reset();
+        try {
+            lb.runProgram(new String[]{
+                    "FUNCTION STEP",
+                    "FORWARD", "LIGHT", "CALL MISSING",
+                    "ENDFUNCTION",
+                    "LIGHT", "RIGHT", "FORWARD", "CALL STEP"
+            });
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Function not defined: MISSING", e.getMessage());
+        }
+        assertArrayEquals(new int[]{0,0}, lb.getRobotPosition());
+        assertArrayEquals(new String[]{
+                "....",
+                "....",
+                "..O."
+        }, lb.getMap());
+    }
+
+    @Test
+    public void test20() {
+        LightBot lb = new LightBot(new String[]{
+                "R...",
+                "..O.",
+                "...."
+        });
+        // Programas que no usa ningún otro test: la caché y sus contadores son de todo el proceso
+        String[] program = { "FORWARD", "FORWARD", "RIGHT", "FORWARD", "LIGHT", "LEFT", "FORWARD", "FORWARD",
+                "REPEAT 2020", "ENDREPEAT" };
+        String[] other = { "LIGHT", "REPEAT 2020", "ENDREPEAT" };
+
+        int maxEntries = LightBot.getProgramCacheMaxEntries();
+        long maxWeight = LightBot.getProgramCacheMaxWeight();
+        try {
+            LightBot.setProgramCacheLimits(256, 1 << 20);
+            long hits = LightBot.getProgramCacheHits();
+            long misses = LightBot.getProgramCacheMisses();
+            assertFalse(LightBot.isProgramCached(program));
+            for (int i = 0; i < 5; i++) {
+                lb.reset();
+                lb.runProgram(program.clone());
+                assertTrue(LightBot.isProgramCached(program));
+            }
+            assertTrue(LightBot.getProgramCacheMisses() >= misses + 1);
+            assertTrue(LightBot.getProgramCacheHits() >= hits + 4);
+            assertArrayEquals(new int[]{0,1}, lb.getRobotPosition());
+            assertArrayEquals(new String[]{
+                    "....",
+                    "..X.",
+                    "...."
+            }, lb.getMap());
+
+            LightBot.setProgramCacheLimits(1, 1 << 20);
+            long evictions = LightBot.getProgramCacheEvictions();
+            lb.reset();
+            lb.runProgram(other);
+            assertTrue(LightBot.getProgramCacheSize() <= 1);
+            assertFalse(LightBot.isProgramCached(program));
+            assertTrue(LightBot.getProgramCacheEvictions() >= evictions + 1);
+            lb.reset();
+            lb.runProgram(program);
+            assertFalse(LightBot.isProgramCached(other));
+            assertArrayEquals(new int[]{0,1}, lb.getRobotPosition());
+        } finally {
+            LightBot.setProgramCacheLimits(maxEntries, maxWeight);
+        }
+        assertEquals(maxEntries, LightBot.getProgramCacheMaxEntries());
+        assertEquals(maxWeight, LightBot.getProgramCacheMaxWeight());
+    }
+
+    @Test
+    public void test21() {
+        LightBot lb = new LightBot(new String[]{
+                "O.O.",
+                "D...",
+                "O..."
+        });
+
+        lb.runProgram(new String[]{ "LIGHT", "FORWARD", "LIGHT", "LEFT", "FORWARD", "LIGHT" });
+        assertArrayEquals(new String[]{
+                "O.O.",
+                "x...",
+                "Xx.."
+        }, lb.getMap());
+
+        lb.reset();
+        assertArrayEquals(new int[]{0,1}, lb.getRobotPosition());
+        assertArrayEquals(new String[]{
+                "O.O.",
+                "....",
+                "O..."
+        }, lb.getMap());
+
+        lb.runProgram(new String[]{ "FORWARD", "FORWARD", "LIGHT", "RIGHT", "RIGHT", "RIGHT", "FORWARD", "FORWARD", "LIGHT" });
+        assertArrayEquals(new String[]{
+                "X.X.",
+                "....",
+                "O..."
+        }, lb.getMap());
+    }
+
+    @Test
+    public void test22() {
+        LightBot lb = new LightBot(new String[]{
+                "R..O",
+                "....",
+                "...."
+        });
+
+        lb.runProgram(new String[]{ "REPEAT 3", "FORWARD", "LIGHT", "ENDREPEAT", "LIGHT", "RIGHT", "FORWARD", "LIGHT" });
+        long[] changes = lb.getChangesSinceReset();
+        assertEquals(4, changes.length);
+        assertEquals(0, LightBot.changeRow(changes[0]));
+        assertEquals(1, LightBot.changeCol(changes[0]));
+        assertEquals('x', LightBot.changeChar(changes[0]));
+        assertEquals(0, LightBot.changeRow(changes[2]));
+        assertEquals(3, LightBot.changeCol(changes[2]));
+        assertEquals('X', LightBot.changeChar(changes[2]));
+
+        long[] buffer = new long[2];
+        assertEquals(4, lb.getChangesSinceReset(buffer));
+        assertEquals(changes[1], buffer[1]);
+
+        lb.reset();
+        assertEquals(0, lb.getChangesSinceReset().length);
+        lb.runProgram(new String[]{ "LEFT", "FORWARD", "LIGHT" });
+        assertEquals(1, lb.getChangesSinceReset(buffer));
+        assertEquals(2, LightBot.changeRow(buffer[0]));
+        assertEquals(0, LightBot.changeCol(buffer[0]));
+        assertEquals('x', LightBot.changeChar(buffer[0]));
+    }
+
+    @Test
+    public void test23() {
+        LightBot lb = new LightBot(new String[]{
+                "R.......................................",
+                "..............................O.........",
+                "........................................"
+        });
+
+        lb.runProgram(new String[]{ "REPEAT 30", "FORWARD", "ENDREPEAT", "LIGHT" });
+        LightBot.Snapshot prefix = lb.snapshot();
+        LightBot other = lb.fork();
+
+        lb.runProgram(new String[]{ "REPEAT 3", "FORWARD", "LIGHT", "ENDREPEAT" });
+        other.runProgram(new String[]{ "RIGHT", "FORWARD", "LIGHT" });
+        assertArrayEquals(new int[]{33,0}, lb.getRobotPosition());
+        assertArrayEquals(new String[]{
+                "..............................xxxx......",
+                "..............................O.........",
+                "........................................"
+        }, lb.getMap());
+        assertArrayEquals(new int[]{30,1}, other.getRobotPosition());
+        assertArrayEquals(new String[]{
+                "..............................x.........",
+                "..............................X.........",
+                "........................................"
+        }, other.getMap());
+
+        lb.restore(prefix);
+        assertArrayEquals(new int[]{30,0}, lb.getRobotPosition());
+        assertEquals(1, lb.getChangesSinceReset().length);
+        lb.runProgram(new String[]{ "LEFT", "FORWARD", "LIGHT" });
+        assertArrayEquals(new String[]{
+                "..............................x.........",
+                "..............................O.........",
+                "..............................x........."
+        }, lb.getMap());
+        assertEquals(2, other.getChangesSinceReset().length);
+
+        other.restore(prefix);
+        other.reset();
+        assertArrayEquals(new int[]{0,0}, other.getRobotPosition());
+        assertArrayEquals(new String[]{
+                "........................................",
+                "..............................O.........",
+                "........................................"
+        }, other.getMap());
+    }
+
+    @Test
+    public void test24() {
+        String[] map = { "..O", "U..", "O.." };
+        LightBot a = new LightBot(map.clone());
+        LightBot b = new LightBot(map.clone());
+        map[1] = "...";
+
+        a.runProgram(new String[]{ "FORWARD", "LIGHT", "RIGHT", "FORWARD", "FORWARD", "LIGHT" });
+        assertArrayEquals(new String[]{ "x.X", "...", "O.." }, a.getMap());
+        assertArrayEquals(new String[]{ "..O", "...", "O.." }, b.getMap());
+        assertArrayEquals(new int[]{0,1}, b.getRobotPosition());
+
+        b.restore(a.snapshot());
+        b.runProgram(new String[]{ "RIGHT", "FORWARD", "LIGHT" });
+        assertArrayEquals(new int[]{2,1}, b.getRobotPosition());
+        assertArrayEquals(new String[]{ "x.X", "..x", "O.." }, b.getMap());
+        assertArrayEquals(new String[]{ "x.X", "...", "O.." }, a.getMap());
+
+        LightBot c = new LightBot(new String[]{ "..O", "D..", "O.." });
+        try {
+            c.restore(a.snapshot());
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertArrayEquals(new int[]{0,1}, c.getRobotPosition());
+        }
+    }
+
+    @Test
+    public void test25() {
+        LightBot lb = new LightBot(new String[]{
+                "O..X.....................................O",
+                "R.O......................................x",
+        });
+        assertEquals(3, lb.remainingTargets());
+        assertEquals(2, lb.litCount());
+        assertFalse(lb.isSolved());
+
+        lb.runProgram(new String[]{ "FORWARD", "FORWARD", "LIGHT", "LEFT", "FORWARD", "LIGHT", "FORWARD", "LEFT", "FORWARD", "LIGHT" });
+        assertEquals(2, lb.remainingTargets());
+        assertEquals(5, lb.litCount());
+
+        lb.runProgram(new String[]{ "FORWARD", "RIGHT", "FORWARD", "LIGHT", "LEFT", "FORWARD", "LIGHT" });
+        assertEquals(0, lb.remainingTargets());
+        assertEquals(7, lb.litCount());
+        assertTrue(lb.isSolved());
+        assertArrayEquals(new String[]{
+                "X.xX.....................................X",
+                ".xX......................................x",
+        }, lb.getMap());
+
+        lb.reset();
+        assertEquals(3, lb.remainingTargets());
+        assertEquals(2, lb.litCount());
+    }
+
+    @Test
+    public void test26() {
+        String[] map = { "O..#O", ".L...", "..O.X" };
+        String[] program = {
+                "FUNCTION ZIG(N)", "REPEAT N", "FORWARD", "LIGHT", "ENDREPEAT", "RIGHT", "ENDFUNCTION",
+                "CALL ZIG(2)", "CALL ZIG(3)", "REPEAT 1000000007", "FORWARD", "ENDREPEAT", "LIGHT"
+        };
+        LightBot heap = new LightBot(map);
+        try (LightBot offHeap = LightBot.createOffHeap(map)) {
+            offHeap.setCompileThreshold(2);
+            for (int i = 0; i < 3; i++) {
+                heap.reset();
+                offHeap.reset();
+                heap.runProgram(program);
+                offHeap.runProgram(program);
+                assertArrayEquals(heap.getRobotPosition(), offHeap.getRobotPosition());
+                assertArrayEquals(heap.getMap(), offHeap.getMap());
+                assertArrayEquals(heap.getChangesSinceReset(), offHeap.getChangesSinceReset());
+                assertEquals(heap.remainingTargets(), offHeap.remainingTargets());
+                assertEquals(heap.litCount(), offHeap.litCount());
+            }
+            offHeap.reset();
+            assertArrayEquals(new String[]{ "O..#O", ".....", "..O.X" }, offHeap.getMap());
+            assertEquals(3, offHeap.remainingTargets());
+            assertEquals(1, offHeap.litCount());
+        }
+    }
+
+    @Test
+    public void test27() {
+        int n = 2000000000;
+        LightBot lb = LightBot.createSparse(n, n, 0, 0, 'R',
+                new int[]{ n - 1, 0, 5 }, new int[]{ 0, n - 1, 5 }, new char[]{ 'O', 'O', '#' });
+        assertEquals(2, lb.remainingTargets());
+        String[] program = { "LEFT", "FORWARD", "LIGHT", "RIGHT", "REPEAT " + (n - 1), "FORWARD", "ENDREPEAT", "LIGHT" };
+
+        lb.setCompileThreshold(2);
+        for (int i = 0; i < 2; i++) {
+            lb.reset();
+            lb.runProgram(program);
+            assertArrayEquals(new int[]{ n - 1, n - 1 }, lb.getRobotPosition());
+            assertEquals(1, lb.remainingTargets());
+            assertEquals(2, lb.litCount());
+        }
+
+        LightBot small = LightBot.createSparse(new String[]{ "O.#", "..U", "O.." });
+        small.runProgram(new String[]{ "LIGHT", "FORWARD", "FORWARD", "LIGHT", "RIGHT", "FORWARD", "LIGHT" });
+        assertArrayEquals(new String[]{ "O.#", "..x", "X.x" }, small.getMap());
+        assertEquals(1, small.remainingTargets());
+    }
+
+    @Test
+    public void test28() throws IOException {
+        String[] map = { "O..O", "..R.", "O..." };
+        String[] program = { "LIGHT", "FORWARD", "LIGHT", "LEFT", "FORWARD", "LIGHT" };
+        Path dir = Files.createTempDirectory("lightbot");
+        Path file = dir.resolve("world.lbw");
+        try {
+            LightBot.convert(map, file);
+            LightBot heap = new LightBot(map);
+            try (LightBot mapped = LightBot.load(file)) {
+                assertArrayEquals(heap.getMap(), mapped.getMap());
+                assertArrayEquals(heap.getRobotPosition(), mapped.getRobotPosition());
+                heap.runProgram(program);
+                mapped.runProgram(program);
+                assertArrayEquals(new String[]{ "O..X", "..xx", "O..." }, mapped.getMap());
+                assertArrayEquals(heap.getChangesSinceReset(), mapped.getChangesSinceReset());
+                assertEquals(2, mapped.remainingTargets());
+
+                // Se guarda encima del fichero proyectado: este LightBot sigue viendo el mapa original
+                mapped.save(file);
+                mapped.reset();
+                assertArrayEquals(new String[]{ "O..O", "....", "O..." }, mapped.getMap());
+            }
+            try (LightBot saved = LightBot.load(file)) {
+                assertArrayEquals(new int[]{ 3, 0 }, saved.getRobotPosition());
+                saved.reset();
+                assertArrayEquals(new String[]{ "O..X", "..xx", "O..." }, saved.getMap());
+                assertEquals(2, saved.remainingTargets());
+                assertEquals(3, saved.litCount());
+                saved.runProgram(new String[]{ "RIGHT", "FORWARD", "LIGHT" });
+                assertArrayEquals(new String[]{ "X..X", "..xx", "O..." }, saved.getMap());
+                assertEquals(1, saved.remainingTargets());
+            }
+        } finally {
+            Files.deleteIfExists(file);
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void test29() throws IOException {
+        String[] map = { "O..#O", ".....", "..O.U", "x...." };
+        String[] program = { "LIGHT", "REPEAT 3", "FORWARD", "LIGHT", "ENDREPEAT", "RIGHT", "FORWARD", "LIGHT" };
+        LightBot expected = new LightBot(map);
+        expected.runProgram(program);
+
+        String unix = String.join("\n", map);
+        String dos = String.join("\r\n", map) + "\r\n";
+        LightBot[] parsed = {
+                LightBot.parse(unix.getBytes(StandardCharsets.US_ASCII)),
+                LightBot.parse(dos.getBytes(StandardCharsets.US_ASCII)),
+                LightBot.parse(new StringReader(dos)),
+                LightBot.parse(new ByteArrayInputStream((unix + "\n").getBytes(StandardCharsets.US_ASCII)))
+        };
+        for (LightBot lb : parsed) {
+            assertArrayEquals(new String[]{ "O..#O", ".....", "..O..", "x...." }, lb.getMap());
+            assertEquals(3, lb.remainingTargets());
+            lb.runProgram(program);
+            assertArrayEquals(expected.getMap(), lb.getMap());
+            assertArrayEquals(expected.getRobotPosition(), lb.getRobotPosition());
+        }
+
+        try {
+            LightBot.parse("O..\n.U\n...".getBytes(StandardCharsets.US_ASCII));
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Rows have different lengths", e.getMessage());
+        }
+        try {
+            LightBot.parse(new StringReader("O..\n.U\n..."));
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Rows have different lengths", e.getMessage());
+        }
+    }
+
+    @Test
+    public void test30() throws IOException {
+        String[] map = new String[40];
+        for (int r = 0; r < map.length; r++) {
+            StringBuilder row = new StringBuilder();
+            for (int c = 0; c < 40; c++) row.append(r == 3 && c == 30 ? 'R' : (r + c) % 7 == 0 ? 'O' : '.');
+            map[r] = row.toString();
+        }
+        String[] program = { "REPEAT 20", "FORWARD", "LIGHT", "RIGHT", "FORWARD", "LIGHT", "LEFT", "ENDREPEAT" };
+        LightBot lb = new LightBot(map);
+        LightBot sparse = LightBot.createSparse(map);
+        lb.runProgram(program);
+        sparse.runProgram(program);
+        String[] full = lb.getMap();
+
+        String[] view = lb.getMap(2, 30, 25, 38);
+        assertEquals(28, view.length);
+        for (int r = 2; r < 30; r++) assertEquals(full[r].substring(25, 38), view[r - 2]);
+        assertArrayEquals(view, sparse.getMap(2, 30, 25, 38));
+        assertArrayEquals(new String[0], lb.getMap(5, 5, 0, 40));
+
+        String expected = String.join("\n", full) + "\n";
+        StringBuilder sb = new StringBuilder();
+        lb.writeMap(sb);
+        assertEquals(expected, sb.toString());
+        StringWriter w = new StringWriter();
+        sparse.writeMap(w);
+        assertEquals(expected, w.toString());
+        ByteBuffer bytes = ByteBuffer.allocate(expected.length());
+        lb.writeMap(bytes);
+        assertEquals(expected, new String(bytes.array(), StandardCharsets.US_ASCII));
+
+        ByteBuffer small = ByteBuffer.allocate(expected.length() - 1);
+        try {
+            lb.writeMap(small);
+            fail();
+        } catch (BufferOverflowException e) {
+            assertEquals(0, small.position());
+        }
+        try {
+            lb.getMap(0, 41, 0, 10);
+            fail();
+        } catch (IndexOutOfBoundsException e) {
+            assertArrayEquals(full, lb.getMap());
+        }
+    }
+
+    @Test
+    public void test31() throws Exception {
+        String[] map = { "O...O.", "..R...", "......", "O..O.." };
+        String[] source = {
+                "FUNCTION zigzag(n)",
+                "REPEAT n", "FORWARD", "LIGHT", "RIGHT", "FORWARD", "LEFT", "ENDREPEAT",
+                "ENDFUNCTION",
+                "CALL zigzag(7)", "RIGHT", "REPEAT 1000000000", "FORWARD", "ENDREPEAT", "LIGHT"
+        };
+        LightBot.CompiledProgram program = LightBot.compile(source);
+        LightBot expected = new LightBot(map);
+        expected.runProgram(source);
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<LightBot>> results = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                int threshold = 1 + i % 3;
+                results.add(pool.submit(() -> {
+                    LightBot lb = new LightBot(map);
+                    lb.setCompileThreshold(threshold);
+                    for (int k = 0; k < 5; k++) {
+                        lb.reset();
+                        lb.runProgram(program);
+                    }
+                    return lb;
+                }));
+            }
+            for (Future<LightBot> f : results) {
+                LightBot lb = f.get();
+                assertArrayEquals(expected.getMap(), lb.getMap());
+                assertArrayEquals(expected.getRobotPosition(), lb.getRobotPosition());
+                assertEquals(expected.remainingTargets(), lb.remainingTargets());
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        try {
+            LightBot.compile(new String[]{ "CALL missing" });
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Function not defined: missing", e.getMessage());
+        }
+    }
+
+    @Test
+    public void test32() {
+        String[] map = { "O....O", "......", "..U...", "O....O" };
+        List<String[]> programs = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            programs.add(new String[]{ "REPEAT " + (i % 5), "FORWARD", "ENDREPEAT", "LIGHT", "RIGHT",
+                    "REPEAT " + (i % 7), "FORWARD", "LIGHT", "ENDREPEAT" });
+        }
+        programs.set(13, new String[]{ "LIGHT", "CALL nowhere" });
+
+        List<LightBot.Result> results = LightBot.evaluateAll(map, programs);
+        assertEquals(programs.size(), results.size());
+        LightBot lb = new LightBot(map);
+        for (int i = 0; i < programs.size(); i++) {
+            LightBot.Result r = results.get(i);
+            lb.reset();
+            if (i == 13) {
+                assertEquals("Function not defined: nowhere", r.getError().getMessage());
+            } else {
+                assertNull(r.getError());
+                lb.runProgram(programs.get(i));
+            }
+            assertArrayEquals(lb.getMap(), r.getMap());
+            assertArrayEquals(lb.getRobotPosition(), r.getRobotPosition());
+            assertEquals(lb.remainingTargets(), r.remainingTargets());
+            assertEquals(lb.isSolved(), r.isSolved());
+            assertEquals(lb.litCount(), r.litCount());
+        }
+        assertTrue(LightBot.evaluateAll(map, new ArrayList<>()).isEmpty());
+    }
+
+    @Test
+    public void test33() {
+        String[] program = {
+                "FUNCTION hop", "FORWARD", "FORWARD", "LIGHT", "ENDFUNCTION",
+                "LIGHT", "REPEAT 3", "CALL hop", "RIGHT", "ENDREPEAT", "REPEAT 999999999", "FORWARD", "ENDREPEAT", "LIGHT"
+        };
+        List<String[]> maps = new ArrayList<>();
+        maps.add(new String[]{ "O..#.", "..U..", "O...O", "....." });
+        maps.add(new String[]{ "....R", "O.O.O", "#####", "x...." });
+        maps.add(new String[]{ "O..#.", "..U..", "O...O", "....." });
+        maps.add(new String[]{ "..O", "D..", "O.#" });
+        maps.add(new String[]{ "OOOOO", "OOOOO", "OOOOO", "OOLOO" });
+        maps.add(new String[]{ "O....", ".....", "....O", ".U..." });
+
+        List<LightBot.Result> results = LightBot.evaluateOnMaps(program, maps);
+        assertEquals(maps.size(), results.size());
+        for (int i = 0; i < maps.size(); i++) {
+            LightBot lb = new LightBot(maps.get(i));
+            lb.runProgram(program);
+            LightBot.Result r = results.get(i);
+            assertNull(r.getError());
+            assertArrayEquals(lb.getMap(), r.getMap());
+            assertArrayEquals(lb.getRobotPosition(), r.getRobotPosition());
+            assertEquals(lb.remainingTargets(), r.remainingTargets());
+            assertEquals(lb.litCount(), r.litCount());
+        }
+    }
+
+    @Test
+    public void test34() {
+        String[] map = { "O..O..", "......", "..L...", "O....O" };
+        String[] program = { "REPEAT 4", "LIGHT", "FORWARD", "LIGHT", "LEFT", "FORWARD", "ENDREPEAT",
+                "REPEAT 1000000", "FORWARD", "LIGHT", "ENDREPEAT" };
+        LightBot plain = new LightBot(map);
+        LightBot lb = new LightBot(map);
+        lb.setFootprintMode(true);
+        lb.setCompileThreshold(3);
+        plain.runProgram(program);
+        for (int i = 0; i < 4; i++) {
+            lb.reset();
+            lb.runProgram(program);
+            assertArrayEquals(plain.getRobotPosition(), lb.getRobotPosition());
+        }
+        assertArrayEquals(plain.getChangesSinceReset(), lb.getChangesSinceReset());
+        assertArrayEquals(plain.getMap(), lb.getMap());
+        assertEquals(plain.remainingTargets(), lb.remainingTargets());
+
+        LightBot.Snapshot snap = lb.snapshot();
+        LightBot f = lb.fork();
+        lb.reset();
+        lb.runProgram(new String[]{ "LIGHT" });
+        f.runProgram(new String[]{ "RIGHT", "FORWARD", "LIGHT" });
+        lb.restore(snap);
+        assertArrayEquals(plain.getMap(), lb.getMap());
+        plain.runProgram(new String[]{ "RIGHT", "FORWARD", "LIGHT" });
+        assertArrayEquals(plain.getMap(), f.getMap());
+
+        lb.reset();
+        lb.runProgram(program);
+        lb.setFootprintMode(false);
+        plain.reset();
+        plain.runProgram(program);
+        assertArrayEquals(plain.getMap(), lb.getMap());
+        assertEquals(plain.litCount(), lb.litCount());
+    }
+
+    @Test
+    public void test35() {
+        String[] map = { "O......", "...D...", "......O", "O.....O", "......." };
+        String[] program = {
+                "FUNCTION walk(n)", "REPEAT n", "FORWARD", "LIGHT", "ENDREPEAT", "RIGHT", "ENDFUNCTION",
+                "LIGHT", "CALL walk(3)", "REPEAT 5", "CALL walk(2)", "LEFT", "FORWARD", "ENDREPEAT", "FORWARD", "LIGHT"
+        };
+        LightBot lb = new LightBot(map);
+        int[] pose = lb.finalPose(program);
+        assertArrayEquals(new int[]{ 3, 1 }, lb.getRobotPosition());
+        assertArrayEquals(new String[]{ "O......", ".......", "......O", "O.....O", "......." }, lb.getMap());
+        lb.runProgram(program);
+        assertArrayEquals(lb.getRobotPosition(), pose);
+
+        String[] huge = { "REPEAT 1000000000000000000", "REPEAT 999999999999", "FORWARD", "LIGHT", "RIGHT",
+                "FORWARD", "ENDREPEAT", "FORWARD", "LEFT", "ENDREPEAT", "FORWARD", "LIGHT" };
+        LightBot.CompiledProgram compiled = LightBot.compile(huge);
+        int[] end = lb.finalPose(compiled);
+        lb.runProgram(compiled);
+        assertArrayEquals(lb.getRobotPosition(), end);
+        String[] tail = { "RIGHT", "REPEAT 3", "FORWARD", "ENDREPEAT" };
+        int[] next = lb.finalPose(tail);
+        assertArrayEquals(end, lb.getRobotPosition());
+        lb.runProgram(tail);
+        assertArrayEquals(lb.getRobotPosition(), next);
+    }
+
+    @Test
+    public void test36() {
+        String[] map = { "O..", ".R.", "..O" };
+        String[] program = { "FORWARD", "LEFT", "FORWARD", "FORWARD", "LIGHT" };
+        LightBot a = new LightBot(map);
+        a.runProgram(program);
+        LightBot.Snapshot snap = a.snapshot();
+        a = null;
+
+        // Forzar al menos una recolección: si el Snapshot no retuviera su Mapa, la entrada interna desaparecería
+        // y b obtendría un Mapa distinto
+        java.lang.ref.WeakReference<Object> centinela = new java.lang.ref.WeakReference<>(new Object());
+        for (int i = 0; i < 100 && centinela.get() != null; i++) System.gc();
+
+        LightBot b = new LightBot(map.clone());
+        b.restore(snap);
+        LightBot ref = new LightBot(map);
+        ref.runProgram(program);
+        assertArrayEquals(ref.getRobotPosition(), b.getRobotPosition());
+        assertArrayEquals(new String[]{ "O..", "...", "..X" }, b.getMap());
+    }
+
+    @Test
+    public void test37() {
+        String[] map = { "O....O.", "...R...", "..O....", "O.....O", "...O..." };
+        // Cada programa con funciones va con su equivalente escrito a mano sin ningún CALL, que no pasa por el
+        // especializador: tienen que dejar el mismo mapa, la misma pose y el mismo número de celdas encendidas
+        // Los casos son argumentos constantes (también a través de otra función), un cuerpo que no se puede
+        // insertar por tamaño y funciones que terminan antes con un ENDREPEAT suelto
+        // Una función demasiado larga para insertarla en línea, que se queda como llamada
+        List<String> body = new ArrayList<>();
+        for (int i = 0; i < 30; i++) body.addAll(List.of(i % 7 == 3 ? "RIGHT" : "FORWARD", "LIGHT"));
+        List<String> big = new ArrayList<>(List.of("FUNCTION BIG"));
+        big.addAll(body);
+        big.addAll(List.of("ENDFUNCTION", "CALL BIG", "LEFT", "CALL BIG"));
+        List<String> bigFlat = new ArrayList<>(body);
+        bigFlat.add("LEFT");
+        bigFlat.addAll(body);
+        // Y una con parámetro llamada desde otra función que sí se especializa
+        List<String> wrap = new ArrayList<>(List.of("FUNCTION LONG(N)", "REPEAT N", "FORWARD", "LIGHT", "ENDREPEAT"));
+        wrap.addAll(body);
+        wrap.addAll(List.of("ENDFUNCTION", "FUNCTION WRAP(N)", "RIGHT", "CALL LONG(N)", "ENDFUNCTION",
+                "CALL WRAP(2)", "CALL WRAP(3)"));
+        List<String> wrapFlat = new ArrayList<>();
+        for (int n = 2; n <= 3; n++) {
+            wrapFlat.addAll(List.of("RIGHT", "REPEAT " + n, "FORWARD", "LIGHT", "ENDREPEAT"));
+            wrapFlat.addAll(body);
+        }
+
+        String[][][] pairs = {
+                {
+                        { "FUNCTION LINE(N, T)", "REPEAT N", "FORWARD", "LIGHT", "ENDREPEAT", "REPEAT T", "RIGHT",
+                                "ENDREPEAT", "ENDFUNCTION",
+                          "FUNCTION BOX(N)", "CALL LINE(N, 1)", "CALL LINE(2, 3)", "ENDFUNCTION",
+                          "CALL LINE(3, 1)", "CALL BOX(4)", "REPEAT 2", "CALL LINE(1, 2)", "ENDREPEAT", "CALL BOX(4)" },
+                        { "REPEAT 3", "FORWARD", "LIGHT", "ENDREPEAT", "RIGHT",
+                          "REPEAT 4", "FORWARD", "LIGHT", "ENDREPEAT", "RIGHT",
+                          "FORWARD", "LIGHT", "FORWARD", "LIGHT", "RIGHT", "RIGHT", "RIGHT",
+                          "REPEAT 2", "FORWARD", "LIGHT", "RIGHT", "RIGHT", "ENDREPEAT",
+                          "REPEAT 4", "FORWARD", "LIGHT", "ENDREPEAT", "RIGHT",
+                          "FORWARD", "LIGHT", "FORWARD", "LIGHT", "LEFT" }
+                },
+                { big.toArray(new String[0]), bigFlat.toArray(new String[0]) },
+                { wrap.toArray(new String[0]), wrapFlat.toArray(new String[0]) },
+                {
+                        { "FUNCTION HALF(N)", "REPEAT N", "FORWARD", "ENDREPEAT", "LIGHT", "ENDREPEAT", "RIGHT",
+                                "FORWARD", "ENDFUNCTION",
+                          "FUNCTION STEP", "LEFT", "FORWARD", "LIGHT", "ENDREPEAT", "FORWARD", "ENDFUNCTION",
+                          "REPEAT 3", "CALL STEP", "CALL HALF(2)", "ENDREPEAT", "CALL HALF(5)", "FORWARD", "LIGHT" },
+                        { "REPEAT 3", "LEFT", "FORWARD", "LIGHT", "FORWARD", "FORWARD", "LIGHT", "ENDREPEAT",
+                          "REPEAT 5", "FORWARD", "ENDREPEAT", "LIGHT", "FORWARD", "LIGHT" }
+                }
+        };
+        for (String[][] pair : pairs) {
+            LightBot lb = new LightBot(map);
+            lb.runProgram(pair[0]);
+            LightBot flat = new LightBot(map);
+            flat.runProgram(pair[1]);
+            assertArrayEquals(flat.getMap(), lb.getMap());
+            assertArrayEquals(flat.getRobotPosition(), lb.getRobotPosition());
+            assertEquals(flat.litCount(), lb.litCount());
+        }
+
+        // Recursión: con argumentos constantes (especializada) o sin parámetros, la llamada nunca termina
+        String[][] recursive = {
+                { "FUNCTION SPIN(N)", "REPEAT N", "RIGHT", "ENDREPEAT", "FORWARD", "CALL SPIN(N)", "ENDFUNCTION",
+                  "CALL SPIN(3)" },
+                { "FUNCTION SPIN", "RIGHT", "RIGHT", "RIGHT", "FORWARD", "CALL SPIN", "ENDFUNCTION", "CALL SPIN" }
+        };
+        for (String[] program : recursive) {
+            LightBot lb = new LightBot(map);
+            lb.setMaxCallDepth(64);
+            try {
+                lb.runProgram(program);
+                fail();
+            } catch (IllegalStateException e) {
+                // esperado
+            }
+        }
+    }
+
+    @Test
+    public void test38() {
+        LightBot lb = LightBot.createSparse(100000, 99999, 0, 0, 'R', new int[]{ 0 }, new int[]{ 10000 }, new char[]{ 'O' });
+        lb.setCompileThreshold(1);
+        String[] program = { "REPEAT 1000000000", "FORWARD", "RIGHT", "FORWARD", "LEFT", "ENDREPEAT", "LIGHT" };
+        String[] function = { "FUNCTION ZIGZAG(N)", "REPEAT N", "FORWARD", "RIGHT", "FORWARD", "LEFT", "ENDREPEAT",
+                "ENDFUNCTION", "FUNCTION RUN(N)", "CALL ZIGZAG(N)", "LIGHT", "CALL ZIGZAG(N)", "ENDFUNCTION",
+                "LIGHT", "CALL RUN(1000000000)" };
+        for (int i = 0; i < 3; i++) {
+            lb.reset();
+            lb.runProgram(program);
+            assertArrayEquals(new int[]{ 10000, 0 }, lb.getRobotPosition());
+            assertEquals(0, lb.remainingTargets());
+
+            lb.reset();
+            lb.runProgram(function);
+            assertArrayEquals(new int[]{ 20000, 0 }, lb.getRobotPosition());
+            assertEquals(0, lb.remainingTargets());
+            assertEquals(2, lb.litCount());
+        }
+    }
+
+    @Test
+    public void test39() {
+        int n = 4097;
+        char[] row = new char[n];
+        Arrays.fill(row, '.');
+        String empty = new String(row);
+        String[] map = new String[n];
+        Arrays.fill(map, empty);
+        row[0] = 'R';
+        row[1] = 'O';
+        map[0] = new String(row);
+        map[2] = "..O" + empty.substring(3);
+
+        LightBot lb = LightBot.create(map);
+        try {
+            lb.runProgram(new String[]{ "FORWARD", "LIGHT" });
+            LightBot.Snapshot snap = lb.snapshot();
+            try (LightBot f = lb.fork()) {
+                f.runProgram(new String[]{ "RIGHT", "FORWARD", "LIGHT", "FORWARD", "LEFT", "FORWARD", "LIGHT" });
+                assertArrayEquals(new String[]{ ".X.", ".x.", "..X" }, f.getMap(0, 3, 0, 3));
+                assertEquals(0, f.remainingTargets());
+                assertArrayEquals(new String[]{ ".X.", "...", "..O" }, lb.getMap(0, 3, 0, 3));
+                assertEquals(1, lb.remainingTargets());
+
+                lb.runProgram(new String[]{ "FORWARD", "LIGHT" });
+                assertArrayEquals(new String[]{ ".Xx", "...", "..O" }, lb.getMap(0, 3, 0, 3));
+                lb.restore(snap);
+                assertArrayEquals(new int[]{ 1, 0 }, lb.getRobotPosition());
+                assertArrayEquals(new String[]{ ".X.", "...", "..O" }, lb.getMap(0, 3, 0, 3));
+                assertEquals(1, lb.litCount());
+                lb.reset();
+                assertArrayEquals(new String[]{ ".O.", "...", "..O" }, lb.getMap(0, 3, 0, 3));
+
+                // La memoria nativa sigue viva mientras la use algún fork
+                lb.close();
+                f.restore(snap);
+                assertArrayEquals(new String[]{ ".X.", "...", "..O" }, f.getMap(0, 3, 0, 3));
+            }
+
+            LightBot other = LightBot.create(map);
+            try {
+                other.restore(snap);
+                fail();
+            } catch (IllegalArgumentException e) {
+                assertArrayEquals(new int[]{ 0, 0 }, other.getRobotPosition());
+            } finally {
+                other.close();
+            }
+        } finally {
+            lb.close();
+        }
+    }
+
+    @Test
+    public void test40() {
+        String[] map = { "O..", ".R.", "..O" };
+        String[] reference = { "FORWARD", "LEFT", "FORWARD", "REPEAT 4040", "ENDREPEAT", "LIGHT" };
+        LightBot lb = new LightBot(map);
+        lb.runProgram(reference);
+        assertTrue(LightBot.isProgramCached(reference));
+
+        // Un lote de envíos sueltos, más de los que caben en la caché, no la toca
+        List<String[]> programs = new ArrayList<>();
+        for (int i = 0; i < 2 * LightBot.getProgramCacheMaxEntries() + 1; i++) {
+            programs.add(new String[]{ "REPEAT " + (4041 + i), "FORWARD", "ENDREPEAT", "LIGHT" });
+        }
+        List<LightBot.Result> results = LightBot.evaluateAll(map, programs);
+        assertTrue(LightBot.isProgramCached(reference));
+        for (String[] program : programs) assertFalse(LightBot.isProgramCached(program));
+
+        for (int i : new int[]{ 0, programs.size() - 1 }) {
+            LightBot expected = new LightBot(map);
+            expected.runProgram(programs.get(i));
+            assertArrayEquals(expected.getMap(), results.get(i).getMap());
+            assertArrayEquals(expected.getRobotPosition(), results.get(i).getRobotPosition());
+        }
+    }
+}
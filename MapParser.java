@@ -0,0 +1,26 @@
+class MapParser {
+    private char[][] grid;
+    private Robot robot;
+
+    public MapParser(String[] rows) {
+        int rcount = rows.length;
+        int ccount = rows[0].length();
+        grid = new char[rcount][ccount];
+        for (int r = 0; r < rcount; r++) {
+            for (int c = 0; c < ccount; c++) {
+                char ch = rows[r].charAt(c);
+                switch (ch) {
+                    case 'U': robot = new Robot(r, c, Robot.Direccion.UP);    grid[r][c] = '.'; break;
+                    case 'D': robot = new Robot(r, c, Robot.Direccion.DOWN);  grid[r][c] = '.'; break;
+                    case 'R': robot = new Robot(r, c, Robot.Direccion.RIGHT); grid[r][c] = '.'; break;
+                    case 'L': robot = new Robot(r, c, Robot.Direccion.LEFT);  grid[r][c] = '.'; break;
+                    default:  grid[r][c] = ch;
+                }
+            }
+        }
+        if (robot == null) throw new IllegalArgumentException("No se encontro posicion de inicio del robot");
+    }
+
+    public char[][] getGrid() { return grid; }
+    public Robot getRobot()   { return robot; }
+}
@@ -0,0 +1,83 @@
+import java.lang.ref.WeakReference;
+import java.util.*;
+
+// Mapa de partida ya parseado e inmutable: celdas originales y pose inicial del robot
+// Se internan por contenido (patrón flyweight): todos los LightBot creados con las mismas líneas comparten
+// un único Mapa y cada uno solo reserva sus propias teselas modificadas (ver TableroEnHeap)
+// La tabla guarda referencias débiles, así que un mapa desaparece cuando ya no lo usa ningún LightBot: cada
+// TableroEnHeap (también los de los Snapshot) guarda una referencia fuerte a su Mapa
+final class Mapa {
+    private static final Map<Clave, WeakReference<Mapa>> internados = new WeakHashMap<>();
+
+    final char[][] celdas;
+    final int fila;
+    final int columna;
+    final Robot.Direccion dir;
+    private final Clave clave; // Mantiene viva la entrada de internados mientras viva el mapa
+    private final TableroEnHeap vacio; // Tablero sin modificar del que se copian (en O(1)) los de cada LightBot
+
+    private Mapa(Clave clave, MapParser parser) {
+        this.clave = clave;
+        this.celdas = parser.getGrid();
+        Robot robot = parser.getRobot();
+        this.fila = robot.row;
+        this.columna = robot.col;
+        this.dir = robot.dir;
+        this.vacio = new TableroEnHeap(this);
+    }
+
+    // Mapa ya parseado por otro medio (ver LectorMapas); no se interna porque no hay líneas con las que compararlo
+    Mapa(char[][] celdas, int fila, int columna, Robot.Direccion dir) {
+        this.clave = null;
+        this.celdas = celdas;
+        this.fila = fila;
+        this.columna = columna;
+        this.dir = dir;
+        this.vacio = new TableroEnHeap(this);
+    }
+
+    // Tablero nuevo sobre este mapa; comparte las tablas vacías de teselas hasta su primera escritura
+    synchronized TableroEnHeap tablero() {
+        return vacio.copia();
+    }
+
+    // Líneas del mapa con su hash precalculado
+    private static final class Clave {
+        final String[] lineas;
+        final int hash;
+
+        Clave(String[] lineas) {
+            this.lineas = lineas;
+            this.hash = Arrays.hashCode(lineas);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Clave && ((Clave) o).hash == hash && Arrays.equals(((Clave) o).lineas, lineas);
+        }
+    }
+
+    // Devuelve el mapa con estas líneas, parseándolo solo si no hay ya uno vivo con el mismo contenido
+    static Mapa de(String[] lineas) {
+        Clave buscada = new Clave(lineas);
+        synchronized (internados) {
+            WeakReference<Mapa> ref = internados.get(buscada);
+            Mapa m = ref == null ? null : ref.get();
+            if (m != null) return m;
+        }
+        Clave clave = new Clave(lineas.clone());
+        Mapa nuevo = new Mapa(clave, new MapParser(clave.lineas));
+        synchronized (internados) {
+            WeakReference<Mapa> ref = internados.get(clave);
+            Mapa m = ref == null ? null : ref.get();
+            if (m != null) return m;
+            internados.put(clave, new WeakReference<>(nuevo));
+        }
+        return nuevo;
+    }
+}
@@ -0,0 +1,108 @@
+// Transformación rígida del robot sobre el toro del mapa: lo que hace un bloque formado solo por giros y avances
+// Para cada dirección de partida guarda el desplazamiento (ya reducido módulo filas/columnas) y el giro neto,
+// de modo que componer dos bloques o repetir uno N veces no depende del tamaño del bloque
+final class Movimiento {
+    // Direcciones en sentido horario: 0 UP, 1 RIGHT, 2 DOWN, 3 LEFT
+    static final Robot.Direccion[] HORARIO = {
+            Robot.Direccion.UP, Robot.Direccion.RIGHT, Robot.Direccion.DOWN, Robot.Direccion.LEFT
+    };
+    private static final int[] DF = { -1, 0, 1, 0 };
+    private static final int[] DC = { 0, 1, 0, -1 };
+
+    final int filas;
+    final int columnas;
+    int giro;                        // Cuartos de vuelta a la derecha, 0..3
+    final int[] df = new int[4];     // Desplazamiento en filas según la dirección de partida
+    final int[] dc = new int[4];     // Desplazamiento en columnas según la dirección de partida
+
+    Movimiento(int filas, int columnas) {
+        this.filas = filas;
+        this.columnas = columnas;
+    }
+
+    // Índice horario de una dirección del robot
+    static int indice(Robot.Direccion d) {
+        switch (d) {
+            case UP:    return 0;
+            case RIGHT: return 1;
+            case DOWN:  return 2;
+            default:    return 3;
+        }
+    }
+
+    // Añade al final un giro de k cuartos de vuelta a la derecha (3 equivale a un giro a la izquierda)
+    void girar(int k) {
+        giro = (giro + k) & 3;
+    }
+
+    // Añade al final k pasos hacia delante
+    void avanzar(long k) {
+        int pf = (int) Math.floorMod(k, (long) filas);
+        int pc = (int) Math.floorMod(k, (long) columnas);
+        for (int d = 0; d < 4; d++) {
+            int mira = (d + giro) & 3;
+            df[d] = (int) Math.floorMod((long) df[d] + DF[mira] * pf, (long) filas);
+            dc[d] = (int) Math.floorMod((long) dc[d] + DC[mira] * pc, (long) columnas);
+        }
+    }
+
+    // Añade al final el efecto de otro movimiento: this pasa a ser "this y después b"
+    void componer(Movimiento b) {
+        int[] nf = new int[4];
+        int[] nc = new int[4];
+        for (int d = 0; d < 4; d++) {
+            int mira = (d + giro) & 3;
+            nf[d] = (int) (((long) df[d] + b.df[mira]) % filas);
+            nc[d] = (int) (((long) dc[d] + b.dc[mira]) % columnas);
+        }
+        System.arraycopy(nf, 0, df, 0, 4);
+        System.arraycopy(nc, 0, dc, 0, 4);
+        giro = (giro + b.giro) & 3;
+    }
+
+    // Devuelve este movimiento aplicado n veces seguidas, por cuadrados sucesivos en O(log n)
+    Movimiento potencia(long n) {
+        Movimiento resultado = new Movimiento(filas, columnas);
+        Movimiento base = copia();
+        while (n > 0) {
+            if ((n & 1) != 0) resultado.componer(base);
+            n >>>= 1;
+            if (n > 0) base.componer(base.copia());
+        }
+        return resultado;
+    }
+
+    Movimiento copia() {
+        Movimiento m = new Movimiento(filas, columnas);
+        m.giro = giro;
+        System.arraycopy(df, 0, m.df, 0, 4);
+        System.arraycopy(dc, 0, m.dc, 0, 4);
+        return m;
+    }
+
+    // Para el bytecode generado (ver GeneradorBytecode): reconstruye un movimiento a partir de las poses (como
+    // Robot.pose()) en las que acaba una vuelta del cuerpo empezando en (0, 0) hacia arriba, la derecha, abajo y
+    // la izquierda, y devuelve la pose a la que llega desde pose tras n vueltas
+    static long repetir(long arriba, long derecha, long abajo, long izquierda, long n, long pose, int filas,
+                        int columnas) {
+        Movimiento m = new Movimiento(filas, columnas);
+        long[] finales = { arriba, derecha, abajo, izquierda };
+        for (int d = 0; d < 4; d++) {
+            m.df[d] = (int) (finales[d] >>> 33);
+            m.dc[d] = (int) (finales[d] >>> 2) & Integer.MAX_VALUE;
+        }
+        m.giro = (int) arriba & 3;
+        Robot r = new Robot(0, 0, Robot.Direccion.UP);
+        r.setPose(pose);
+        m.potencia(n).aplicar(r);
+        return r.pose();
+    }
+
+    // Mueve al robot como lo habría hecho el bloque original
+    void aplicar(Robot robot) {
+        int d = indice(robot.dir);
+        robot.row = (int) (((long) robot.row + df[d]) % filas);
+        robot.col = (int) (((long) robot.col + dc[d]) % columnas);
+        robot.dir = HORARIO[(d + giro) & 3];
+    }
+}
@@ -0,0 +1,249 @@
+import java.util.Arrays;
+
+// Pasada de mirilla (peephole) entre la compilación y la ejecución de un bloque
+//  - Los giros seguidos se reducen a un único giro neto (OP_LEFT, OP_RIGHT u OP_TURN 2)
+//  - Los FORWARD seguidos se funden en un OP_MOVE k que el robot resuelve de una vez
+//  - Un LIGHT sobre una celda que ya se encendió sin moverse después se elimina
+//  - Los bucles cuyo cuerpo no mueve al robot se sustituyen por su efecto (un LIGHT y un giro),
+//    los REPEAT 1 sin bucles dentro se desenrollan y los que no ejecutan nada desaparecen
+// Trabaja en una sola pasada sobre el flujo de opcodes, sin recursión, con una pila de bucles abiertos
+final class Optimizador {
+    private final Program p;
+    private int[] out;
+    private int n;                              // Tamaño del flujo de salida
+    private int[] ops = new int[64];            // Posiciones de los opcodes emitidos, en orden
+    private int numOps;
+    private int inicioSegmento;                 // Primer pc que se puede fusionar con lo que se emita
+    private boolean luz;                        // La celda del robot ya se encendió desde el último movimiento
+    private int[] abiertos = new int[24];       // Por cada REPEAT abierto: cabecera, inicioSegmento y luz anteriores
+    private int nivel;
+    private int maxNivel;
+
+    private Optimizador(Program p) {
+        this.p = p;
+        this.out = new int[p.code.length + 8];
+    }
+
+    // Devuelve el bloque optimizado; el número de instrucciones eliminadas queda en Program.eliminadas
+    static Program optimizar(Program p) {
+        Optimizador o = new Optimizador(p);
+        o.recorrer();
+        int[] code = Arrays.copyOf(o.out, o.n);
+        int eliminadas = contar(p.code, p.code.length) - contar(code, code.length);
+        return new Program(code, p.constantes, p.llamadas, p.numParams, o.maxNivel, eliminadas);
+    }
+
+    private static int contar(int[] code, int hasta) {
+        int total = 0;
+        for (int pc = 0; pc < hasta; pc += Program.longitud(code[pc])) total++;
+        return total;
+    }
+
+    private void recorrer() {
+        int[] code = p.code;
+        for (int pc = 0; pc < code.length; pc += Program.longitud(code[pc])) {
+            int op = code[pc];
+            switch (op) {
+                case Program.OP_LEFT:
+                    girar(3);
+                    break;
+                case Program.OP_RIGHT:
+                    girar(1);
+                    break;
+                case Program.OP_TURN:
+                    girar(code[pc + 1]);
+                    break;
+                case Program.OP_FORWARD:
+                    avanzar(1);
+                    break;
+                case Program.OP_MOVE:
+                    avanzar(code[pc + 1]);
+                    break;
+                case Program.OP_LIGHT:
+                    encender();
+                    break;
+                case Program.OP_REPEAT:
+                case Program.OP_REPEAT_P:
+                    if (nivel * 3 + 3 > abiertos.length) abiertos = Arrays.copyOf(abiertos, abiertos.length * 2);
+                    abiertos[nivel * 3] = n;
+                    abiertos[nivel * 3 + 1] = inicioSegmento;
+                    abiertos[nivel * 3 + 2] = luz ? 1 : 0;
+                    nivel++;
+                    maxNivel = Math.max(maxNivel, nivel);
+                    emitir(op, code[pc + 1], -1);
+                    inicioSegmento = n;
+                    luz = false;
+                    break;
+                case Program.OP_ENDREPEAT:
+                    cerrarBucle();
+                    break;
+                case Program.OP_CALL:
+                    emitir(op, code[pc + 1]);
+                    luz = false;
+                    break;
+                default:
+                    // Lo que sigue a un fin de bloque no se ejecuta nunca
+                    emitir(Program.OP_HALT);
+                    return;
+            }
+        }
+    }
+
+    // Cierra el REPEAT abierto más interno, sustituyéndolo por algo más barato cuando se puede
+    private void cerrarBucle() {
+        nivel--;
+        int cabecera = abiertos[nivel * 3];
+        int segmentoAnterior = abiertos[nivel * 3 + 1];
+        boolean luzAnterior = abiertos[nivel * 3 + 2] != 0;
+        boolean literal = out[cabecera] == Program.OP_REPEAT;
+        long veces = literal ? p.constantes[out[cabecera + 1]] : 0;
+        int desde = cabecera + 3;
+
+        boolean rectilineo = true; // sin bucles anidados
+        boolean quieto = true;     // sin bucles, llamadas ni movimientos
+        boolean enciende = false;
+        int giro = 0;
+        for (int pc = desde; pc < n; pc += Program.longitud(out[pc])) {
+            int op = out[pc];
+            if (op == Program.OP_REPEAT || op == Program.OP_REPEAT_P) rectilineo = false;
+            if (op == Program.OP_LIGHT) enciende = true;
+            else if (esGiro(pc)) giro += giroDe(pc);
+            else quieto = false;
+        }
+
+        int[] cuerpo = null;
+        if (desde == n || (literal && veces <= 0)) {
+            // No hace nada
+        } else if (literal && quieto) {
+            // El robot no cambia de celda: el cuerpo enciende como mucho una celda y gira
+            cuerpo = new int[0];
+        } else if (literal && veces == 1 && rectilineo) {
+            cuerpo = Arrays.copyOfRange(out, desde, n);
+        } else {
+            emitir(Program.OP_ENDREPEAT, cabecera);
+            out[cabecera + 2] = n;
+            inicioSegmento = segmentoAnterior;
+            luz = false;
+            return;
+        }
+
+        truncar(cabecera);
+        inicioSegmento = segmentoAnterior;
+        luz = luzAnterior;
+        if (cuerpo == null) return;
+        if (cuerpo.length == 0) {
+            if (enciende) encender();
+            girar((int) ((veces & 3) * (giro & 3)));
+            return;
+        }
+        for (int pc = 0; pc < cuerpo.length; pc += Program.longitud(cuerpo[pc])) {
+            switch (cuerpo[pc]) {
+                case Program.OP_LIGHT:   encender(); break;
+                case Program.OP_LEFT:    girar(3); break;
+                case Program.OP_RIGHT:   girar(1); break;
+                case Program.OP_TURN:    girar(cuerpo[pc + 1]); break;
+                case Program.OP_FORWARD: avanzar(1); break;
+                case Program.OP_MOVE:    avanzar(cuerpo[pc + 1]); break;
+                default:
+                    emitir(cuerpo[pc], cuerpo[pc + 1]);
+                    luz = false;
+            }
+        }
+    }
+
+    // Añade un giro de k cuartos de vuelta a la derecha, fusionándolo con el giro anterior
+    // Un giro conmuta con un LIGHT (la celda es la misma), así que también se fusiona a través de él
+    private void girar(int k) {
+        k &= 3;
+        if (k == 0) return;
+        int u = ultimo();
+        if (u >= 0 && out[u] == Program.OP_LIGHT) {
+            int v = penultimo();
+            if (v >= 0 && esGiro(v)) {
+                int r = (giroDe(v) + k) & 3;
+                truncar(v);
+                emitirGiro(r);
+                emitir(Program.OP_LIGHT);
+                return;
+            }
+        } else if (u >= 0 && esGiro(u)) {
+            int r = (giroDe(u) + k) & 3;
+            truncar(u);
+            emitirGiro(r);
+            return;
+        }
+        emitirGiro(k);
+    }
+
+    private void avanzar(int k) {
+        int u = ultimo();
+        if (u >= 0 && (out[u] == Program.OP_FORWARD || out[u] == Program.OP_MOVE)) {
+            k += out[u] == Program.OP_FORWARD ? 1 : out[u + 1];
+            truncar(u);
+        }
+        if (k == 1) emitir(Program.OP_FORWARD);
+        else emitir(Program.OP_MOVE, k);
+        luz = false;
+    }
+
+    private void encender() {
+        if (luz) return;
+        emitir(Program.OP_LIGHT);
+        luz = true;
+    }
+
+    private void emitirGiro(int r) {
+        if (r == 1) emitir(Program.OP_RIGHT);
+        else if (r == 3) emitir(Program.OP_LEFT);
+        else if (r == 2) emitir(Program.OP_TURN, 2);
+    }
+
+    private boolean esGiro(int pc) {
+        int op = out[pc];
+        return op == Program.OP_LEFT || op == Program.OP_RIGHT || op == Program.OP_TURN;
+    }
+
+    private int giroDe(int pc) {
+        switch (out[pc]) {
+            case Program.OP_LEFT:  return 3;
+            case Program.OP_RIGHT: return 1;
+            default:               return out[pc + 1];
+        }
+    }
+
+    private int ultimo() {
+        return numOps > 0 && ops[numOps - 1] >= inicioSegmento ? ops[numOps - 1] : -1;
+    }
+
+    private int penultimo() {
+        return numOps > 1 && ops[numOps - 2] >= inicioSegmento ? ops[numOps - 2] : -1;
+    }
+
+    private void truncar(int pc) {
+        n = pc;
+        while (numOps > 0 && ops[numOps - 1] >= pc) numOps--;
+    }
+
+    private void emitir(int op) {
+        registrar();
+        out[n++] = op;
+    }
+
+    private void emitir(int op, int a) {
+        registrar();
+        out[n++] = op;
+        out[n++] = a;
+    }
+
+    private void emitir(int op, int a, int b) {
+        registrar();
+        out[n++] = op;
+        out[n++] = a;
+        out[n++] = b;
+    }
+
+    private void registrar() {
+        if (numOps == ops.length) ops = Arrays.copyOf(ops, numOps * 2);
+        ops[numOps++] = n;
+    }
+}
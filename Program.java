@@ -0,0 +1,250 @@
+import java.util.*;
+
+// Programa compilado: las instrucciones de texto se traducen una sola vez a un flujo compacto de opcodes
+// Los contadores de REPEAT se decodifican y los saltos de inicio/fin de bucle se resuelven al compilar
+final class Program {
+    static final int OP_LEFT      = 0; // LEFT
+    static final int OP_RIGHT     = 1; // RIGHT
+    static final int OP_FORWARD   = 2; // FORWARD
+    static final int OP_LIGHT     = 3; // LIGHT
+    static final int OP_REPEAT    = 4; // REPEAT indiceConstante, pcSalida
+    static final int OP_ENDREPEAT = 5; // ENDREPEAT pcRepeat
+    static final int OP_CALL      = 6; // CALL indiceLlamada
+    static final int OP_HALT      = 7; // fin del bloque
+    static final int OP_REPEAT_P  = 8; // REPEAT slotParametro, pcSalida: el número de vueltas sale del marco
+    static final int OP_REPEAT_M  = 9; // Como OP_REPEAT, pero el cuerpo solo gira y avanza (se ejecuta en forma cerrada)
+    static final int OP_REPEAT_MP = 10; // Como OP_REPEAT_P, con cuerpo de solo movimiento
+    static final int OP_TURN      = 11; // TURN k: giro neto de k cuartos de vuelta a la derecha (lo produce Optimizador)
+    static final int OP_MOVE      = 12; // MOVE k: k pasos hacia delante seguidos (lo produce Optimizador)
+
+    final int[] code;         // Flujo de opcodes con sus operandos en línea
+    final long[] constantes;  // Números de vueltas literales de los REPEAT
+    final Llamada[] llamadas; // Sitios de llamada, indexados por el operando de OP_CALL
+    final int numParams;      // Tamaño del marco de argumentos que necesita este bloque
+    final int maxAnidamiento; // Profundidad máxima de REPEAT anidados, para dimensionar la pila de contadores
+    final int eliminadas;     // Instrucciones que quitó Optimizador al producir este bloque
+
+    // Un sitio de llamada: nombre de la función y de dónde sale cada argumento
+    // slots[k] >= 0 indica que el argumento k es el parámetro slots[k] del llamante; si no, vale valores[k]
+    // destino es el id del bloque llamado en la tabla que devuelve enlazar (-1 mientras no se enlaza)
+    static final class Llamada {
+        final String nombre;
+        final long[] valores;
+        final int[] slots;
+        int destino = -1;
+
+        Llamada(String nombre, long[] valores, int[] slots) {
+            this.nombre = nombre;
+            this.valores = valores;
+            this.slots = slots;
+        }
+    }
+
+    Program(int[] code, long[] constantes, Llamada[] llamadas, int numParams, int maxAnidamiento, int eliminadas) {
+        this.code = code;
+        this.constantes = constantes;
+        this.llamadas = llamadas;
+        this.numParams = numParams;
+        this.maxAnidamiento = maxAnidamiento;
+        this.eliminadas = eliminadas;
+    }
+
+    // Compila el bloque principal de un programa, que no tiene parámetros
+    static Program compilar(List<String> inst) {
+        return compilar(inst, Collections.emptyList());
+    }
+
+    // Compila un bloque de instrucciones: se salta las definiciones FUNCTION/ENDFUNCTION,
+    // decodifica los REPEAT y enlaza cada ENDREPEAT con su REPEAT (y viceversa)
+    // Los nombres de parámetros se resuelven aquí a su posición dentro del marco de argumentos
+    static Program compilar(List<String> inst, List<String> params) {
+        int[] code = new int[inst.size() * 5 + 1];
+        int pc = 0;
+        List<Llamada> llamadas = new ArrayList<>();
+        long[] constantes = new long[4];
+        int nc = 0;
+        int[] abiertos = new int[8]; // pcs de los REPEAT todavía sin cerrar
+        int nivel = 0;
+        int maxNivel = 0;
+        int i = 0;
+        while (i < inst.size()) {
+            String comando = inst.get(i);
+            if (comando.equals("LEFT")) {
+                code[pc++] = OP_LEFT;
+            } else if (comando.equals("RIGHT")) {
+                code[pc++] = OP_RIGHT;
+            } else if (comando.equals("FORWARD")) {
+                code[pc++] = OP_FORWARD;
+            } else if (comando.equals("LIGHT")) {
+                code[pc++] = OP_LIGHT;
+            } else if (comando.startsWith("REPEAT")) {
+                String[] parts = comando.split(" ");
+                if (nivel == abiertos.length) abiertos = Arrays.copyOf(abiertos, nivel * 2);
+                abiertos[nivel++] = pc;
+                maxNivel = Math.max(maxNivel, nivel);
+                int slot = params.indexOf(parts[1]);
+                if (slot >= 0) {
+                    code[pc++] = OP_REPEAT_P;
+                    code[pc++] = slot;
+                } else {
+                    if (nc == constantes.length) constantes = Arrays.copyOf(constantes, nc * 2);
+                    constantes[nc] = Long.parseLong(parts[1]);
+                    code[pc++] = OP_REPEAT;
+                    code[pc++] = nc++;
+                }
+                code[pc++] = -1; // se rellena al encontrar el ENDREPEAT
+            } else if (comando.equals("ENDREPEAT")) {
+                if (nivel == 0) {
+                    // Un ENDREPEAT sin REPEAT termina el bloque actual
+                    code[pc++] = OP_HALT;
+                } else {
+                    int rp = abiertos[--nivel];
+                    code[pc++] = OP_ENDREPEAT;
+                    code[pc++] = rp;
+                    code[rp + 2] = pc;
+                }
+            } else if (comando.startsWith("FUNCTION")) {
+                int level = 1;
+                int j = i + 1;
+                while (j < inst.size() && level > 0) {
+                    if (inst.get(j).startsWith("FUNCTION")) level++;
+                    else if (inst.get(j).equals("ENDFUNCTION")) level--;
+                    j++;
+                }
+                i = j;
+                continue;
+            } else if (comando.startsWith("CALL")) {
+                code[pc++] = OP_CALL;
+                code[pc++] = llamadas.size();
+                llamadas.add(parseLlamada(comando.substring(4).trim(), params));
+            }
+            i++;
+        }
+        // Los REPEAT sin ENDREPEAT abarcan hasta el final del bloque
+        while (nivel > 0) {
+            int rp = abiertos[--nivel];
+            code[pc++] = OP_ENDREPEAT;
+            code[pc++] = rp;
+            code[rp + 2] = pc;
+        }
+        code[pc++] = OP_HALT;
+        return new Program(Arrays.copyOf(code, pc), Arrays.copyOf(constantes, nc),
+                llamadas.toArray(new Llamada[0]), params.size(), maxNivel, 0);
+    }
+
+    // Separa nombre y argumentos de un CALL; cada argumento es un parámetro del bloque actual o un número
+    private static Llamada parseLlamada(String call, List<String> params) {
+        String name;
+        List<String> args = new ArrayList<>();
+        int pstart = call.indexOf('(');
+        if (pstart >= 0) {
+            name = call.substring(0, pstart).trim();
+            int pend = call.lastIndexOf(')');
+            String as = call.substring(pstart + 1, pend).trim();
+            if (!as.isEmpty()) for (String a : as.split(",")) args.add(a.trim());
+        } else name = call;
+        long[] valores = new long[args.size()];
+        int[] slots = new int[args.size()];
+        for (int k = 0; k < args.size(); k++) {
+            slots[k] = params.indexOf(args.get(k));
+            if (slots[k] < 0) valores[k] = Long.parseLong(args.get(k));
+        }
+        return new Llamada(name, valores, slots);
+    }
+
+    // Tabla de símbolos del programa: da un id denso a cada bloque alcanzable desde el principal (que es el 0)
+    // y enlaza cada CALL con el id de su función, de modo que al ejecutar no se busca nada por nombre
+    // Las funciones sin definir o sin argumentos suficientes se detectan aquí, antes de tocar el mapa
+    static Program[] enlazar(Program main, Map<String, Program> funciones) {
+        Map<String, Integer> ids = new HashMap<>();
+        List<Program> bloques = new ArrayList<>();
+        bloques.add(main);
+        for (int id = 0; id < bloques.size(); id++) {
+            Program p = bloques.get(id);
+            for (int pc = 0; pc < p.code.length; pc += longitud(p.code[pc])) {
+                if (p.code[pc] != OP_CALL) continue;
+                Llamada ll = p.llamadas[p.code[pc + 1]];
+                Integer destino = ids.get(ll.nombre);
+                if (destino == null) {
+                    Program f = funciones.get(ll.nombre);
+                    if (f == null) throw new IllegalArgumentException("Function not defined: " + ll.nombre);
+                    destino = bloques.size();
+                    ids.put(ll.nombre, destino);
+                    bloques.add(f);
+                }
+                if (ll.slots.length < bloques.get(destino).numParams) {
+                    throw new IllegalArgumentException("Missing arguments for function: " + ll.nombre);
+                }
+                ll.destino = destino;
+            }
+        }
+        return bloques.toArray(new Program[0]);
+    }
+
+    // Marca como OP_REPEAT_M/OP_REPEAT_MP los bucles cuyo cuerpo solo gira y avanza,
+    // también a través de CALL a funciones que a su vez solo giran y avanzan
+    // La impureza se propaga de cada bloque a sus llamantes con una lista de trabajo, sin recursión,
+    // para que las cadenas de llamadas muy profundas no agoten la pila del hilo
+    // Trabaja sobre la tabla ya enlazada por enlazar
+    static void marcarBuclesDeMovimiento(Program[] bloques) {
+        List<List<Integer>> llamantes = new ArrayList<>();
+        for (int id = 0; id < bloques.length; id++) llamantes.add(new ArrayList<>());
+        boolean[] impuras = new boolean[bloques.length];
+        ArrayDeque<Integer> pendientes = new ArrayDeque<>();
+        for (int id = 0; id < bloques.length; id++) {
+            Program f = bloques[id];
+            for (int pc = 0; pc < f.code.length - 1; pc += longitud(f.code[pc])) {
+                int op = f.code[pc];
+                if (op == OP_LIGHT || op == OP_HALT) impuras[id] = true;
+                else if (op == OP_CALL) llamantes.get(f.llamadas[f.code[pc + 1]].destino).add(id);
+            }
+            if (impuras[id]) pendientes.add(id);
+        }
+        while (!pendientes.isEmpty()) {
+            for (int id : llamantes.get(pendientes.poll())) {
+                if (!impuras[id]) {
+                    impuras[id] = true;
+                    pendientes.add(id);
+                }
+            }
+        }
+        for (Program p : bloques) p.marcarBuclesDeMovimiento(impuras);
+    }
+
+    private void marcarBuclesDeMovimiento(boolean[] impuras) {
+        for (int pc = 0; pc < code.length; pc += longitud(code[pc])) {
+            int op = code[pc];
+            if ((op == OP_REPEAT || op == OP_REPEAT_P) && soloMovimiento(pc + 3, code[pc + 2] - 2, impuras)) {
+                code[pc] = op == OP_REPEAT ? OP_REPEAT_M : OP_REPEAT_MP;
+            }
+        }
+    }
+
+    // Indica si los opcodes [desde, hasta) solo giran y avanzan
+    private boolean soloMovimiento(int desde, int hasta, boolean[] impuras) {
+        for (int pc = desde; pc < hasta; pc += longitud(code[pc])) {
+            int op = code[pc];
+            if (op == OP_LIGHT || op == OP_HALT) return false;
+            if (op == OP_CALL && impuras[llamadas[code[pc + 1]].destino]) return false;
+        }
+        return true;
+    }
+
+    // Número de enteros que ocupa un opcode junto con sus operandos
+    static int longitud(int op) {
+        switch (op) {
+            case OP_REPEAT:
+            case OP_REPEAT_P:
+            case OP_REPEAT_M:
+            case OP_REPEAT_MP:
+                return 3;
+            case OP_ENDREPEAT:
+            case OP_CALL:
+            case OP_TURN:
+            case OP_MOVE:
+                return 2;
+            default:
+                return 1;
+        }
+    }
+}
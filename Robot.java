@@ -0,0 +1,107 @@
+// Representa al robot dentro del mundo, con posición (fila, columna) y dirección actual
+// Ofrece métodos para girar, mover y cambiar la iluminación de las celdas
+class Robot {
+    public int row;
+    public int col;
+    public Direccion dir;
+
+    enum Direccion { UP, DOWN, LEFT, RIGHT }
+
+    // Constructor: fija posición inicial y dirección de enfrentamiento
+    Robot(int row, int col, Direccion dir) {
+        this.row = row;
+        this.col = col;
+        this.dir = dir;
+    }
+
+    // Dirección que indica la letra del robot en un mapa de texto ('U', 'D', 'L' o 'R'), o null si no es una
+    static Direccion direccion(char c) {
+        switch (c) {
+            case 'U': return Direccion.UP;
+            case 'D': return Direccion.DOWN;
+            case 'R': return Direccion.RIGHT;
+            case 'L': return Direccion.LEFT;
+            default:  return null;
+        }
+    }
+
+    // Codifica fila, columna y dirección (en sentido horario, ver Movimiento.HORARIO) en un único long,
+    // útil para comparar poses rápidamente y para pasarlas al código generado
+    long pose() {
+        return ((long) row << 33) | ((long) col << 2) | Movimiento.indice(dir);
+    }
+
+    // Restaura una pose codificada con pose()
+    void setPose(long pose) {
+        row = (int) (pose >>> 33);
+        col = (int) (pose >>> 2) & Integer.MAX_VALUE;
+        dir = Movimiento.HORARIO[(int) pose & 3];
+    }
+
+    // Gira el robot 90 grados hacia la izquierda según su dirección actual
+    public void girarIzquierda() {
+        switch (dir) {
+            case UP:    dir = Direccion.LEFT;  break;
+            case LEFT:  dir = Direccion.DOWN;  break;
+            case DOWN:  dir = Direccion.RIGHT; break;
+            default:    dir = Direccion.UP;    break;
+        }
+    }
+
+    // Gira el robot 90 grados hacia la derecha según su dirección actual
+    public void girarDerecha() {
+        switch (dir) {
+            case UP:    dir = Direccion.RIGHT; break;
+            case RIGHT: dir = Direccion.DOWN;  break;
+            case DOWN:  dir = Direccion.LEFT;  break;
+            default:    dir = Direccion.UP;    break;
+        }
+    }
+
+    // Gira el robot k cuartos de vuelta a la derecha
+    public void girar(int k) {
+        dir = Movimiento.HORARIO[(Movimiento.indice(dir) + k) & 3];
+    }
+
+    // Mueve al robot k casillas de golpe en la dirección actual; los bordes se conectan (wrap-around)
+    public void caminar(Tablero grid, long k) {
+        int dr = 0, dc = 0;
+        switch (dir) {
+            case UP:    dr = -1; break;
+            case DOWN:  dr = +1; break;
+            case LEFT:  dc = -1; break;
+            case RIGHT: dc = +1; break;
+        }
+        row = (int) Math.floorMod(row + dr * (k % grid.filas), (long) grid.filas);
+        col = (int) Math.floorMod(col + dc * (k % grid.columnas), (long) grid.columnas);
+    }
+
+    // Mueve al robot una casilla en la dirección actual; los bordes se conectan (wrap-around)
+    public void caminar(Tablero grid) {
+        int dr = 0, dc = 0;
+        switch (dir) {
+            case UP:    dr = -1; break;
+            case DOWN:  dr = +1; break;
+            case LEFT:  dc = -1; break;
+            case RIGHT: dc = +1; break;
+        }
+        int nr = (int) (((long) row + dr + grid.filas) % grid.filas);
+        int nc = (int) (((long) col + dc + grid.columnas) % grid.columnas);
+        row = nr;
+        col = nc;
+    }
+
+    // Cambia el estado de la celda actual: si está apagada la enciende y si está encendida la apaga
+    public void luz(Tablero grid) {
+        grid.luz(row, col);
+    }
+
+    public void repeat() {
+
+    }
+
+    public void function() {
+
+    }
+
+}
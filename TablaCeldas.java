@@ -0,0 +1,92 @@
+import java.util.Arrays;
+
+// Tabla hash de direccionamiento abierto (sondeo lineal) de celdas a caracteres, sin objetos por entrada
+// Las claves son (fila << 32) | columna y un valor 0 marca una posición libre, así que no se puede guardar '\0'
+final class TablaCeldas {
+    private long[] claves;
+    private char[] valores;
+    private int ocupadas;
+    private int bits;
+
+    TablaCeldas() {
+        this(4);
+    }
+
+    private TablaCeldas(int bits) {
+        this.bits = bits;
+        this.claves = new long[1 << bits];
+        this.valores = new char[1 << bits];
+    }
+
+    static long clave(int fila, int col) {
+        return ((long) fila << 32) | col;
+    }
+
+    private int posicion(long clave) {
+        return (int) ((clave * 0x9E3779B97F4A7C15L) >>> (64 - bits));
+    }
+
+    // Valor de la celda, o 0 si no está
+    char get(long clave) {
+        int m = claves.length - 1;
+        for (int i = posicion(clave); valores[i] != 0; i = (i + 1) & m) {
+            if (claves[i] == clave) return valores[i];
+        }
+        return 0;
+    }
+
+    // Guarda el valor de una celda; devuelve true si la celda no estaba
+    boolean put(long clave, char valor) {
+        int m = claves.length - 1;
+        int i = posicion(clave);
+        for (; valores[i] != 0; i = (i + 1) & m) {
+            if (claves[i] == clave) {
+                valores[i] = valor;
+                return false;
+            }
+        }
+        claves[i] = clave;
+        valores[i] = valor;
+        if (++ocupadas * 2 > claves.length) crecer();
+        return true;
+    }
+
+    private void crecer() {
+        TablaCeldas t = new TablaCeldas(bits + 1);
+        for (int i = 0; i < claves.length; i++) if (valores[i] != 0) t.put(claves[i], valores[i]);
+        claves = t.claves;
+        valores = t.valores;
+        bits = t.bits;
+    }
+
+    int size() {
+        return ocupadas;
+    }
+
+    // Deja la tabla vacía conservando su capacidad
+    void limpiar() {
+        if (ocupadas == 0) return;
+        Arrays.fill(valores, (char) 0);
+        ocupadas = 0;
+    }
+
+    TablaCeldas copia() {
+        TablaCeldas t = new TablaCeldas(0);
+        t.bits = bits;
+        t.claves = claves.clone();
+        t.valores = valores.clone();
+        t.ocupadas = ocupadas;
+        return t;
+    }
+
+    // Recorre las celdas guardadas, en un orden cualquiera
+    interface Visitante {
+        void celda(int fila, int col, char valor);
+    }
+
+    void recorrer(Visitante v) {
+        for (int i = 0; i < claves.length; i++) {
+            if (valores[i] != 0) v.celda((int) (claves[i] >>> 32), (int) claves[i], valores[i]);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+// Estado de las celdas del mundo, con varias implementaciones (LightBot.create elige entre las dos primeras):
+//  - TableroEnHeap: terreno compartido entre LightBot (ver Mapa), teselas copy-on-write y reset en O(1)
+//  - TableroFueraDeHeap: celdas empaquetadas en memoria nativa (MemorySegment), para mapas enormes o proyectados
+//    desde un fichero de FormatoBinario
+//  - TableroDisperso: solo las celdas distintas de '.' y las encendidas, para mapas enormes y casi vacíos
+//  - TableroDiferido: envuelve a cualquiera de los otros y aplaza sus escrituras (modo huella)
+// El robot, el intérprete y el bytecode generado solo usan lo que declara esta clase
+abstract class Tablero {
+    // Por encima de este número de celdas LightBot.create deja el mapa fuera del heap
+    static final long MAX_CELDAS_EN_HEAP = 1L << 24;
+
+    final int filas;
+    final int columnas;
+
+    Tablero(int filas, int columnas) {
+        this.filas = filas;
+        this.columnas = columnas;
+    }
+
+    // Indica si un mapa es lo bastante pequeño para guardarlo en el heap
+    static boolean cabeEnHeap(String[] lineas) {
+        return (long) lineas.length * lineas[0].length() <= MAX_CELDAS_EN_HEAP;
+    }
+
+    // Contenido actual de una celda
+    abstract char get(int fila, int col);
+
+    // 'O' pasa a 'X' y '.' pasa a 'x'; el resto de celdas no cambia
+    abstract void luz(int fila, int col);
+
+    // Vuelve al contenido del mapa original
+    abstract void reset();
+
+    // Devuelve un tablero con el mismo contenido que evoluciona por separado
+    abstract Tablero copia();
+
+    // Indica si t parte del mismo mapa original (el contenido actual puede ser distinto)
+    abstract boolean mismoOriginal(Tablero t);
+
+    // Objetivos ('O') que quedan por encender
+    abstract int objetivosPendientes();
+
+    // Celdas que se ven encendidas ('X' o 'x'), contando las que ya lo estaban en el mapa original
+    abstract int encendidas();
+
+    // Número de celdas modificadas desde el último reset
+    abstract int numCambios();
+
+    // Escribe en out, a partir de desde, las celdas modificadas desde el último reset con su contenido actual,
+    // empaquetadas como (fila << 40) | (columna << 16) | carácter; devuelve cuántas ha escrito
+    abstract int cambios(long[] out, int desde);
+
+    // Copia en out, a partir de desde, el contenido actual de las celdas [colDesde, colHasta) de una fila
+    // Por defecto celda a celda con get(); los tableros que pueden copiar tramos enteros lo redefinen
+    void fila(int fila, int colDesde, int colHasta, char[] out, int desde) {
+        for (int c = colDesde; c < colHasta; c++) out[desde + c - colDesde] = get(fila, c);
+    }
+
+    // Contenido actual de la ventana [filaDesde, filaHasta) × [colDesde, colHasta), una String por fila
+    String[] getMap(int filaDesde, int filaHasta, int colDesde, int colHasta) {
+        String[] out = new String[filaHasta - filaDesde];
+        char[] fila = new char[colHasta - colDesde];
+        for (int r = filaDesde; r < filaHasta; r++) {
+            fila(r, colDesde, colHasta, fila, 0);
+            out[r - filaDesde] = new String(fila);
+        }
+        return out;
+    }
+
+    String[] getMap() {
+        return getMap(0, filas, 0, columnas);
+    }
+
+    // Un LightBot pasa a usar este tablero, obtenido con copia(); lo soltará con cerrar()
+    // Por defecto no hay nada que contar
+    void retener() {
+    }
+
+    // Libera la memoria que no gestiona el recolector; por defecto no hay nada que liberar
+    void cerrar() {
+    }
+}
@@ -0,0 +1,104 @@
+import java.util.Arrays;
+
+// Tablero del modo huella (ver LightBot.setFootprintMode): LIGHT solo apunta la celda en un conjunto de enteros
+// sin repetidos y el tablero de debajo no se toca mientras nadie mire el mapa
+// Cualquier consulta (get, getMap, cambios, contadores, copias) aplica antes las celdas apuntadas, en el orden en
+// que se encendieron por primera vez, así que el resultado es el mismo que sin aplazar; un reset() con celdas aún
+// pendientes solo vacía el conjunto
+// Las copias son tableros normales: quien copia decide si los vuelve a envolver
+final class TableroDiferido extends Tablero {
+    final Tablero base;
+    private final TablaCeldas apuntadas = new TablaCeldas();
+    private long[] orden = new long[16]; // Celdas apuntadas, como (fila << 32) | columna, en orden de llegada
+    private int numApuntadas;
+
+    TableroDiferido(Tablero base) {
+        super(base.filas, base.columnas);
+        this.base = base;
+    }
+
+    // Aplica las celdas apuntadas al tablero de debajo y lo devuelve
+    Tablero aplicar() {
+        if (numApuntadas > 0) {
+            for (int i = 0; i < numApuntadas; i++) base.luz((int) (orden[i] >>> 32), (int) orden[i]);
+            numApuntadas = 0;
+            apuntadas.limpiar();
+        }
+        return base;
+    }
+
+    @Override
+    void luz(int fila, int col) {
+        long k = TablaCeldas.clave(fila, col);
+        if (!apuntadas.put(k, (char) 1)) return;
+        if (numApuntadas == orden.length) orden = Arrays.copyOf(orden, numApuntadas * 2);
+        orden[numApuntadas++] = k;
+    }
+
+    @Override
+    char get(int fila, int col) {
+        return aplicar().get(fila, col);
+    }
+
+    @Override
+    void reset() {
+        numApuntadas = 0;
+        apuntadas.limpiar();
+        base.reset();
+    }
+
+    @Override
+    Tablero copia() {
+        return aplicar().copia();
+    }
+
+    @Override
+    boolean mismoOriginal(Tablero t) {
+        return base.mismoOriginal(t instanceof TableroDiferido ? ((TableroDiferido) t).base : t);
+    }
+
+    @Override
+    int objetivosPendientes() {
+        return aplicar().objetivosPendientes();
+    }
+
+    @Override
+    int encendidas() {
+        return aplicar().encendidas();
+    }
+
+    @Override
+    int numCambios() {
+        return aplicar().numCambios();
+    }
+
+    @Override
+    int cambios(long[] out, int desde) {
+        return aplicar().cambios(out, desde);
+    }
+
+    @Override
+    void fila(int fila, int colDesde, int colHasta, char[] out, int desde) {
+        aplicar().fila(fila, colDesde, colHasta, out, desde);
+    }
+
+    @Override
+    String[] getMap(int filaDesde, int filaHasta, int colDesde, int colHasta) {
+        return aplicar().getMap(filaDesde, filaHasta, colDesde, colHasta);
+    }
+
+    @Override
+    String[] getMap() {
+        return aplicar().getMap();
+    }
+
+    @Override
+    void retener() {
+        base.retener();
+    }
+
+    @Override
+    void cerrar() {
+        base.cerrar();
+    }
+}
@@ -0,0 +1,195 @@
+import java.util.Arrays;
+
+// Tablero disperso para mapas enormes y casi vacíos: el terreno '.' es implícito y solo se guardan las celdas
+// distintas de '.' (objetivos, muros...) y las encendidas, en TablaCeldas indexadas por (fila, columna)
+// La memoria depende de las celdas interesantes y tocadas, no del área, así que filas y columnas pueden llegar
+// a Integer.MAX_VALUE
+// El terreno no cambia y lo comparten todas las copias; las encendidas se copian la primera vez que una copia
+// escribe, y reset() empieza una tabla vacía
+final class TableroDisperso extends Tablero {
+    private final TablaCeldas terreno;
+    private final int numObjetivos;
+    private final int encendidasIniciales;
+    private TablaCeldas encendidas = new TablaCeldas();
+    private boolean encendidasCompartidas;
+    private int objetivosEncendidos;
+    private long[] cambios = new long[16]; // Celdas encendidas desde el último reset, como (fila << 32) | columna
+    private int numCambios;
+    private boolean cambiosCompartidos;
+
+    final int filaRobot;
+    final int colRobot;
+    final Robot.Direccion dirRobot;
+
+    // celdas[i] es el contenido de (filasCeldas[i], columnasCeldas[i]); el resto del mapa es '.'
+    TableroDisperso(int filas, int columnas, int filaRobot, int colRobot, Robot.Direccion dirRobot,
+                    int[] filasCeldas, int[] columnasCeldas, char[] celdas) {
+        super(filas, columnas);
+        if (filas <= 0 || columnas <= 0) throw new IllegalArgumentException("Invalid map size: " + filas + "x" + columnas);
+        if (filasCeldas.length != celdas.length || columnasCeldas.length != celdas.length) {
+            throw new IllegalArgumentException("Cell arrays differ in length");
+        }
+        comprobar(filaRobot, colRobot);
+        terreno = new TablaCeldas();
+        for (int i = 0; i < celdas.length; i++) {
+            comprobar(filasCeldas[i], columnasCeldas[i]);
+            if (celdas[i] == 0) throw new IllegalArgumentException("Invalid cell type");
+            if (celdas[i] != '.') terreno.put(TablaCeldas.clave(filasCeldas[i], columnasCeldas[i]), celdas[i]);
+        }
+        int[] cuenta = new int[2];
+        terreno.recorrer((f, c, v) -> {
+            if (v == 'O') cuenta[0]++;
+            else if (v == 'X' || v == 'x') cuenta[1]++;
+        });
+        numObjetivos = cuenta[0];
+        encendidasIniciales = cuenta[1];
+        this.filaRobot = filaRobot;
+        this.colRobot = colRobot;
+        this.dirRobot = dirRobot;
+    }
+
+    private TableroDisperso(TableroDisperso t) {
+        super(t.filas, t.columnas);
+        terreno = t.terreno;
+        numObjetivos = t.numObjetivos;
+        encendidasIniciales = t.encendidasIniciales;
+        encendidas = t.encendidas;
+        objetivosEncendidos = t.objetivosEncendidos;
+        cambios = t.cambios;
+        numCambios = t.numCambios;
+        encendidasCompartidas = cambiosCompartidos = true;
+        filaRobot = t.filaRobot;
+        colRobot = t.colRobot;
+        dirRobot = t.dirRobot;
+    }
+
+    // Mapa de texto en forma dispersa; el robot se busca como en MapParser
+    static TableroDisperso de(String[] lineas) {
+        int filas = lineas.length;
+        int columnas = lineas[0].length();
+        int fr = -1, cr = -1;
+        Robot.Direccion dr = null;
+        int n = 0;
+        int[] fs = new int[16], cs = new int[16];
+        char[] vs = new char[16];
+        for (int r = 0; r < filas; r++) {
+            for (int c = 0; c < columnas; c++) {
+                char ch = lineas[r].charAt(c);
+                Robot.Direccion d = Robot.direccion(ch);
+                if (d != null) {
+                    fr = r;
+                    cr = c;
+                    dr = d;
+                } else if (ch != '.') {
+                    if (n == vs.length) {
+                        fs = Arrays.copyOf(fs, n * 2);
+                        cs = Arrays.copyOf(cs, n * 2);
+                        vs = Arrays.copyOf(vs, n * 2);
+                    }
+                    fs[n] = r;
+                    cs[n] = c;
+                    vs[n++] = ch;
+                }
+            }
+        }
+        if (dr == null) throw new IllegalArgumentException("No se encontro posicion de inicio del robot");
+        return new TableroDisperso(filas, columnas, fr, cr, dr, Arrays.copyOf(fs, n), Arrays.copyOf(cs, n), Arrays.copyOf(vs, n));
+    }
+
+    private void comprobar(int fila, int col) {
+        if (fila < 0 || fila >= filas || col < 0 || col >= columnas) {
+            throw new IllegalArgumentException("Cell out of the map: " + fila + "," + col);
+        }
+    }
+
+    private char terreno(long clave) {
+        char c = terreno.get(clave);
+        return c == 0 ? '.' : c;
+    }
+
+    @Override
+    char get(int fila, int col) {
+        long k = TablaCeldas.clave(fila, col);
+        char c = terreno(k);
+        if (encendidas.get(k) == 0) return c;
+        return c == 'O' ? 'X' : 'x';
+    }
+
+    @Override
+    void luz(int fila, int col) {
+        long k = TablaCeldas.clave(fila, col);
+        char c = terreno(k);
+        if (c != 'O' && c != '.') return;
+        if (encendidas.get(k) != 0) return;
+        if (encendidasCompartidas) {
+            encendidas = encendidas.copia();
+            encendidasCompartidas = false;
+        }
+        encendidas.put(k, (char) 1);
+        if (c == 'O') objetivosEncendidos++;
+        if (cambiosCompartidos) {
+            cambios = Arrays.copyOf(cambios, Math.max(16, numCambios * 2));
+            cambiosCompartidos = false;
+        } else if (numCambios == cambios.length) cambios = Arrays.copyOf(cambios, numCambios * 2);
+        cambios[numCambios++] = k;
+    }
+
+    @Override
+    void reset() {
+        if (numCambios == 0) return;
+        encendidas = new TablaCeldas();
+        encendidasCompartidas = false;
+        objetivosEncendidos = 0;
+        numCambios = 0;
+    }
+
+    // En O(1): las dos copias comparten las celdas encendidas hasta que una de ellas enciende otra
+    @Override
+    TableroDisperso copia() {
+        encendidasCompartidas = cambiosCompartidos = true;
+        return new TableroDisperso(this);
+    }
+
+    @Override
+    boolean mismoOriginal(Tablero t) {
+        return t instanceof TableroDisperso && ((TableroDisperso) t).terreno == terreno;
+    }
+
+    @Override
+    int objetivosPendientes() {
+        return numObjetivos - objetivosEncendidos;
+    }
+
+    @Override
+    int encendidas() {
+        return encendidasIniciales + encendidas.size();
+    }
+
+    @Override
+    int numCambios() {
+        return numCambios;
+    }
+
+    @Override
+    int cambios(long[] out, int desde) {
+        if (filas > 1 << 24 || columnas > 1 << 24) throw new IllegalStateException("Map too large for packed changes");
+        int n = Math.min(numCambios, out.length - desde);
+        for (int i = 0; i < n; i++) {
+            int fila = (int) (cambios[i] >>> 32);
+            int col = (int) cambios[i];
+            out[desde + i] = ((long) fila << 40) | ((long) col << 16) | get(fila, col);
+        }
+        return n;
+    }
+
+    @Override
+    String[] getMap() {
+        char[][] celdas = new char[filas][columnas];
+        for (char[] fila : celdas) Arrays.fill(fila, '.');
+        terreno.recorrer((f, c, v) -> celdas[f][c] = v);
+        encendidas.recorrer((f, c, v) -> celdas[f][c] = celdas[f][c] == 'O' ? 'X' : 'x');
+        String[] out = new String[filas];
+        for (int r = 0; r < filas; r++) out[r] = new String(celdas[r]);
+        return out;
+    }
+}
@@ -0,0 +1,229 @@
+import java.util.Arrays;
+
+// Tablero en el heap: el terreno original, que no cambia, más un plano de bits con las celdas
+// encendidas desde el último reset; una celda 'O' encendida se ve como 'X' y una '.' encendida como 'x'
+// Los bits se guardan por teselas de LADO × LADO (PALABRAS longs cada una); cada tesela lleva el sello de la época
+// en que se empezó a usar y solo vale si coincide con la época actual, así que reiniciar el mundo es pasar
+// a la época siguiente, sin borrar nada
+// Las celdas objetivo ('O') están en otro plano de bits con la misma disposición, compartido por todas las copias,
+// de modo que contar objetivos pendientes o celdas encendidas son popcounts y AND-NOT sobre palabras
+// copia() comparte las teselas con el tablero nuevo en O(1) (copy-on-write): el primero que escribe después
+// copia la tabla de teselas y, de cada tesela que toca, solo esa tesela
+// Además se apunta, en orden, cada celda la primera vez que cambia en una época, para poder devolver solo los cambios
+final class TableroEnHeap extends Tablero {
+    private static final int BITS = 5;
+    private static final int LADO = 1 << BITS;
+    private static final int MASCARA = LADO - 1;
+    private static final int PALABRAS = LADO * LADO / 64;
+
+    private final Mapa mapa;               // Mapa de partida; mantenerlo vivo mantiene su entrada en la tabla de Mapa
+    private final char[][] original;
+    private final int teselasPorFila;
+    private final long[] objetivos;        // Plano de celdas 'O', PALABRAS longs por tesela
+    private final int numObjetivos;
+    private final int encendidasIniciales; // Celdas que ya eran 'X' o 'x' en el mapa original
+    private long[][] teselas;              // Bits de celdas encendidas de cada tesela
+    private int[] sellos;                  // Época en que se empezó a usar cada tesela
+    private boolean[] propias;             // Teselas que este tablero puede escribir sin copiarlas
+    private boolean tablaCompartida;       // teselas, sellos y propias son también de otro tablero
+    private int epoca = 1;
+    private long[] cambios = new long[16]; // Celdas encendidas en la época actual, como (fila << 32) | columna
+    private int numCambios;
+    private boolean cambiosCompartidos;
+
+    TableroEnHeap(Mapa mapa) {
+        super(mapa.celdas.length, mapa.celdas[0].length);
+        this.mapa = mapa;
+        this.original = mapa.celdas;
+        this.teselasPorFila = (columnas + MASCARA) >> BITS;
+        int n = ((filas + MASCARA) >> BITS) * teselasPorFila;
+        this.teselas = new long[n][];
+        this.sellos = new int[n];
+        this.propias = new boolean[n];
+        this.objetivos = new long[n * PALABRAS];
+        int o = 0, e = 0;
+        for (int f = 0; f < filas; f++) {
+            for (int c = 0; c < columnas; c++) {
+                char ch = original[f][c];
+                if (ch == 'O') {
+                    objetivos[tesela(f, c) * PALABRAS + (bit(f, c) >> 6)] |= 1L << bit(f, c);
+                    o++;
+                } else if (ch == 'X' || ch == 'x') e++;
+            }
+        }
+        this.numObjetivos = o;
+        this.encendidasIniciales = e;
+    }
+
+    private TableroEnHeap(TableroEnHeap t) {
+        super(t.filas, t.columnas);
+        mapa = t.mapa;
+        original = t.original;
+        teselasPorFila = t.teselasPorFila;
+        objetivos = t.objetivos;
+        numObjetivos = t.numObjetivos;
+        encendidasIniciales = t.encendidasIniciales;
+        teselas = t.teselas;
+        sellos = t.sellos;
+        propias = t.propias;
+        epoca = t.epoca;
+        cambios = t.cambios;
+        numCambios = t.numCambios;
+        tablaCompartida = cambiosCompartidos = true;
+    }
+
+    // En O(1): las dos copias comparten las teselas hasta que escriben en ellas
+    @Override
+    TableroEnHeap copia() {
+        tablaCompartida = cambiosCompartidos = true;
+        return new TableroEnHeap(this);
+    }
+
+    @Override
+    boolean mismoOriginal(Tablero t) {
+        return t instanceof TableroEnHeap && ((TableroEnHeap) t).mapa == mapa;
+    }
+
+    private int tesela(int fila, int col) {
+        return (fila >> BITS) * teselasPorFila + (col >> BITS);
+    }
+
+    // Posición de la celda dentro de los bits de su tesela
+    private static int bit(int fila, int col) {
+        return (fila & MASCARA) << BITS | (col & MASCARA);
+    }
+
+    private boolean encendida(int fila, int col) {
+        int t = tesela(fila, col);
+        int b = bit(fila, col);
+        return sellos[t] == epoca && (teselas[t][b >> 6] & (1L << b)) != 0;
+    }
+
+    @Override
+    char get(int fila, int col) {
+        char c = original[fila][col];
+        if (!encendida(fila, col)) return c;
+        return c == 'O' ? 'X' : 'x';
+    }
+
+    @Override
+    void luz(int fila, int col) {
+        char c = original[fila][col];
+        if (c != 'O' && c != '.') return;
+        int t = tesela(fila, col);
+        int b = bit(fila, col);
+        long m = 1L << b;
+        if (sellos[t] == epoca && (teselas[t][b >> 6] & m) != 0) return;
+        escribible(t)[b >> 6] |= m;
+        apuntar(fila, col);
+    }
+
+    // Devuelve los bits de la tesela t listos para escribir: copia la tabla si se comparte, copia la tesela
+    // si es de otro tablero y la vacía si es de una época anterior
+    private long[] escribible(int t) {
+        if (tablaCompartida) {
+            teselas = teselas.clone();
+            sellos = sellos.clone();
+            propias = new boolean[propias.length];
+            tablaCompartida = false;
+        }
+        if (sellos[t] == epoca) {
+            if (!propias[t]) {
+                teselas[t] = teselas[t].clone();
+                propias[t] = true;
+            }
+            return teselas[t];
+        }
+        if (propias[t]) Arrays.fill(teselas[t], 0);
+        else {
+            teselas[t] = new long[PALABRAS];
+            propias[t] = true;
+        }
+        sellos[t] = epoca;
+        return teselas[t];
+    }
+
+    private void apuntar(int fila, int col) {
+        if (cambiosCompartidos) {
+            cambios = Arrays.copyOf(cambios, Math.max(16, numCambios * 2));
+            cambiosCompartidos = false;
+        } else if (numCambios == cambios.length) cambios = Arrays.copyOf(cambios, numCambios * 2);
+        cambios[numCambios++] = ((long) fila << 32) | col;
+    }
+
+    // Vuelve al mapa original en O(1): las teselas con sellos de épocas anteriores dejan de valer
+    // Si el contador da la vuelta se descartan todas las teselas para que ningún sello antiguo coincida
+    @Override
+    void reset() {
+        numCambios = 0;
+        if (++epoca == 0) {
+            teselas = new long[teselas.length][];
+            sellos = new int[sellos.length];
+            propias = new boolean[propias.length];
+            tablaCompartida = false;
+            epoca = 1;
+        }
+    }
+
+    // Objetivos ('O') encendidos: popcount de (encendidas AND objetivos) sobre las teselas de la época actual
+    private int objetivosEncendidos() {
+        int n = 0;
+        for (int t = 0; t < sellos.length; t++) {
+            if (sellos[t] != epoca) continue;
+            long[] bits = teselas[t];
+            for (int w = 0; w < PALABRAS; w++) n += Long.bitCount(bits[w] & objetivos[t * PALABRAS + w]);
+        }
+        return n;
+    }
+
+    @Override
+    int objetivosPendientes() {
+        return numObjetivos - objetivosEncendidos();
+    }
+
+    @Override
+    int encendidas() {
+        int n = encendidasIniciales;
+        for (int t = 0; t < sellos.length; t++) {
+            if (sellos[t] != epoca) continue;
+            for (long w : teselas[t]) n += Long.bitCount(w);
+        }
+        return n;
+    }
+
+    @Override
+    int numCambios() {
+        return numCambios;
+    }
+
+    @Override
+    int cambios(long[] out, int desde) {
+        if (filas > 1 << 24 || columnas > 1 << 24) throw new IllegalStateException("Map too large for packed changes");
+        int n = Math.min(numCambios, out.length - desde);
+        for (int i = 0; i < n; i++) {
+            int fila = (int) (cambios[i] >>> 32);
+            int col = (int) cambios[i];
+            out[desde + i] = ((long) fila << 40) | ((long) col << 16) | get(fila, col);
+        }
+        return n;
+    }
+
+    // El tramo del terreno original se copia de una vez y después se marcan los bits encendidos de cada tesela
+    @Override
+    void fila(int fila, int colDesde, int colHasta, char[] out, int desde) {
+        System.arraycopy(original[fila], colDesde, out, desde, colHasta - colDesde);
+        int b = (fila & MASCARA) << BITS;
+        for (int c0 = colDesde & ~MASCARA; c0 < colHasta; c0 += LADO) {
+            int t = tesela(fila, c0);
+            if (sellos[t] != epoca) continue;
+            long bits = (teselas[t][b >> 6] >>> (b & 63)) & 0xFFFFFFFFL;
+            while (bits != 0) {
+                int c = c0 + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                if (c < colDesde || c >= colHasta) continue;
+                int i = desde + c - colDesde;
+                out[i] = out[i] == 'O' ? 'X' : 'x';
+            }
+        }
+    }
+}
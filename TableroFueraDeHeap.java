@@ -0,0 +1,243 @@
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.Arrays;
+
+// Tablero fuera del heap para mapas enormes: las celdas van en un MemorySegment, por filas, con bitsCelda bits
+// cada una (8 al parsear texto; 2, 4 u 8 en los ficheros de FormatoBinario, que se proyectan tal cual)
+// Los bits bajos de una celda son el índice del carácter original en una paleta y el bit alto queda reservado
+// (siempre a 0); el recolector no ve las celdas, solo la paleta
+// Las celdas nativas no se modifican después de parsearlas: las encendidas van aparte en una TablaCeldas, como
+// en TableroDisperso, así que las copias de snapshot() y fork() comparten la memoria nativa en O(1) y solo
+// copian sus encendidas la primera vez que una de ellas enciende otra; reset() empieza una tabla vacía
+// La memoria pertenece a un Arena compartido por todas las copias, que se libera cuando cierran (cerrar()) todos
+// los LightBot que la usan
+// Usa java.lang.foreign, así que el proyecto necesita Java 22 o posterior (ver README.md)
+final class TableroFueraDeHeap extends Tablero {
+    private final Memoria memoria;
+    private final MemorySegment celdas;
+    private final int bitsCelda;
+    private final int indice;     // Máscara del índice en la paleta dentro de una celda
+    private final char[] paleta;
+    private final int numObjetivos;
+    private final int encendidasIniciales;
+    private TablaCeldas encendidas = new TablaCeldas();
+    private boolean encendidasCompartidas;
+    private int objetivosEncendidos;
+    private long[] cambios = new long[16]; // Celdas encendidas desde el último reset, como (fila << 32) | columna
+    private int numCambios;
+    private boolean cambiosCompartidos;
+    private boolean retenido;     // Este tablero cuenta como uno de los usos de memoria (ver retener())
+
+    final int filaRobot;
+    final int colRobot;
+    final Robot.Direccion dirRobot;
+
+    // Parsea el mapa directamente a memoria nativa, con las mismas reglas que MapParser
+    TableroFueraDeHeap(String[] lineas) {
+        super(lineas.length, lineas[0].length());
+        Arena arena = Arena.ofShared();
+        memoria = new Memoria(arena);
+        retenido = true;
+        bitsCelda = 8;
+        indice = 0x7F;
+        int[] codigos = new int[Character.MAX_VALUE + 1];
+        Arrays.fill(codigos, -1);
+        char[] colores = new char[128];
+        int numColores = 0;
+        int objetivos = 0, encendidas = 0;
+        int fr = -1, cr = -1;
+        Robot.Direccion dr = null;
+        try {
+            celdas = arena.allocate((long) filas * columnas);
+            for (int r = 0; r < filas; r++) {
+                String linea = lineas[r];
+                long base = (long) r * columnas;
+                for (int c = 0; c < columnas; c++) {
+                    char ch = linea.charAt(c);
+                    Robot.Direccion d = Robot.direccion(ch);
+                    if (d != null) {
+                        fr = r;
+                        cr = c;
+                        dr = d;
+                        ch = '.';
+                    }
+                    if (codigos[ch] < 0) {
+                        if (numColores == colores.length) throw new IllegalArgumentException("Too many distinct cell types");
+                        colores[numColores] = ch;
+                        codigos[ch] = numColores++;
+                    }
+                    if (ch == 'O') objetivos++;
+                    else if (ch == 'X' || ch == 'x') encendidas++;
+                    celdas.set(ValueLayout.JAVA_BYTE, base + c, (byte) codigos[ch]);
+                }
+            }
+            if (dr == null) throw new IllegalArgumentException("No se encontro posicion de inicio del robot");
+        } catch (RuntimeException | Error e) {
+            arena.close();
+            throw e;
+        }
+        paleta = Arrays.copyOf(colores, numColores);
+        numObjetivos = objetivos;
+        encendidasIniciales = encendidas;
+        filaRobot = fr;
+        colRobot = cr;
+        dirRobot = dr;
+    }
+
+    // Tablero sobre celdas ya codificadas (ver FormatoBinario); se queda con el arena, que libera cerrar()
+    TableroFueraDeHeap(Arena arena, MemorySegment celdas, int bitsCelda, char[] paleta, int filas, int columnas,
+                       int numObjetivos, int encendidasIniciales, int filaRobot, int colRobot, Robot.Direccion dirRobot) {
+        super(filas, columnas);
+        this.memoria = new Memoria(arena);
+        this.retenido = true;
+        this.celdas = celdas;
+        this.bitsCelda = bitsCelda;
+        this.indice = (1 << (bitsCelda - 1)) - 1;
+        this.paleta = paleta;
+        this.numObjetivos = numObjetivos;
+        this.encendidasIniciales = encendidasIniciales;
+        this.filaRobot = filaRobot;
+        this.colRobot = colRobot;
+        this.dirRobot = dirRobot;
+    }
+
+    private TableroFueraDeHeap(TableroFueraDeHeap t) {
+        super(t.filas, t.columnas);
+        memoria = t.memoria;
+        celdas = t.celdas;
+        bitsCelda = t.bitsCelda;
+        indice = t.indice;
+        paleta = t.paleta;
+        numObjetivos = t.numObjetivos;
+        encendidasIniciales = t.encendidasIniciales;
+        encendidas = t.encendidas;
+        objetivosEncendidos = t.objetivosEncendidos;
+        cambios = t.cambios;
+        numCambios = t.numCambios;
+        encendidasCompartidas = cambiosCompartidos = true;
+        filaRobot = t.filaRobot;
+        colRobot = t.colRobot;
+        dirRobot = t.dirRobot;
+    }
+
+    // Arena de las celdas y número de LightBot que las usan
+    private static final class Memoria {
+        final Arena arena;
+        private int usos = 1;
+
+        Memoria(Arena arena) {
+            this.arena = arena;
+        }
+
+        synchronized void retener() {
+            if (usos == 0) throw new IllegalStateException("Map memory already released");
+            usos++;
+        }
+
+        synchronized void soltar() {
+            if (--usos == 0) arena.close();
+        }
+    }
+
+    private long desplazamiento(int fila, int col) {
+        return (long) fila * columnas + col;
+    }
+
+    // Bits de la celda i; una celda nunca cruza un byte porque bitsCelda divide a 8
+    private int celda(long i) {
+        if (bitsCelda == 8) return celdas.get(ValueLayout.JAVA_BYTE, i) & 0xFF;
+        long bit = i * bitsCelda;
+        return (celdas.get(ValueLayout.JAVA_BYTE, bit >>> 3) >>> (bit & 7)) & ((1 << bitsCelda) - 1);
+    }
+
+    @Override
+    char get(int fila, int col) {
+        char c = paleta[celda(desplazamiento(fila, col)) & indice];
+        if (encendidas.size() == 0 || encendidas.get(TablaCeldas.clave(fila, col)) == 0) return c;
+        return c == 'O' ? 'X' : 'x';
+    }
+
+    @Override
+    void luz(int fila, int col) {
+        char c = paleta[celda(desplazamiento(fila, col)) & indice];
+        if (c != 'O' && c != '.') return;
+        long k = TablaCeldas.clave(fila, col);
+        if (encendidas.get(k) != 0) return;
+        if (encendidasCompartidas) {
+            encendidas = encendidas.copia();
+            encendidasCompartidas = false;
+        }
+        encendidas.put(k, (char) 1);
+        if (c == 'O') objetivosEncendidos++;
+        if (cambiosCompartidos) {
+            cambios = Arrays.copyOf(cambios, Math.max(16, numCambios * 2));
+            cambiosCompartidos = false;
+        } else if (numCambios == cambios.length) cambios = Arrays.copyOf(cambios, numCambios * 2);
+        cambios[numCambios++] = k;
+    }
+
+    @Override
+    void reset() {
+        if (numCambios == 0) return;
+        encendidas = new TablaCeldas();
+        encendidasCompartidas = false;
+        objetivosEncendidos = 0;
+        numCambios = 0;
+    }
+
+    // En O(1): la copia comparte la memoria nativa y, hasta que una de las dos enciende otra, las encendidas
+    // No cuenta como uso de la memoria hasta que un LightBot la retiene
+    @Override
+    TableroFueraDeHeap copia() {
+        encendidasCompartidas = cambiosCompartidos = true;
+        return new TableroFueraDeHeap(this);
+    }
+
+    @Override
+    boolean mismoOriginal(Tablero t) {
+        return t instanceof TableroFueraDeHeap && ((TableroFueraDeHeap) t).memoria == memoria;
+    }
+
+    @Override
+    int objetivosPendientes() {
+        return numObjetivos - objetivosEncendidos;
+    }
+
+    @Override
+    int encendidas() {
+        return encendidasIniciales + encendidas.size();
+    }
+
+    @Override
+    int numCambios() {
+        return numCambios;
+    }
+
+    @Override
+    int cambios(long[] out, int desde) {
+        if (filas > 1 << 24 || columnas > 1 << 24) throw new IllegalStateException("Map too large for packed changes");
+        int n = Math.min(numCambios, out.length - desde);
+        for (int i = 0; i < n; i++) {
+            int fila = (int) (cambios[i] >>> 32);
+            int col = (int) cambios[i];
+            out[desde + i] = ((long) fila << 40) | ((long) col << 16) | get(fila, col);
+        }
+        return n;
+    }
+
+    @Override
+    void retener() {
+        if (retenido) return;
+        memoria.retener();
+        retenido = true;
+    }
+
+    // Suelta el uso de este tablero; la memoria se libera con el último
+    @Override
+    void cerrar() {
+        if (!retenido) return;
+        retenido = false;
+        memoria.soltar();
+    }
+}